@@ -0,0 +1,196 @@
+/*
+ * Copyright 2009 Alok Singh
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.alok.diskmap;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of record values, configured with {@link Configuration#setCompression}. Values shorter than the
+ * threshold, or that do not shrink, are stored as they are. A compressed value holds the length of the
+ * uncompressed value followed by a zlib stream, which identifies the preset dictionary it needs, and its record
+ * is flagged with {@link Record#COMPRESSED}. Keys are never compressed, lookups compare them as stored.
+ */
+public class Compressor {
+    private static final int SEGMENT_SIZE = 16;
+    private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private final Configuration.Compression compression;
+    private final int threshold;
+    private final byte[] dictionary;
+
+    public Compressor(Configuration cfg) {
+        this.compression = cfg.getCompression();
+        this.threshold = cfg.getCompressionThreshold();
+        this.dictionary = cfg.getCompressionDictionary();
+    }
+
+    /**
+     * Replaces the value of <code>r</code> with its compressed form, if compression is enabled and saves space.
+     */
+    public void compress(Record r) {
+        byte[] value = r.getValue();
+        if (compression == Configuration.Compression.NONE || r.isCompressed() || value.length < threshold || value.length <= 4) {
+            return;
+        }
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(value);
+        deflater.finish();
+        //Anything not smaller than the value is useless, stop there
+        byte[] compressed = new byte[value.length];
+        ByteBuffer.wrap(compressed).putInt(value.length);
+        int length = 4;
+        while (!deflater.finished() && length < compressed.length) {
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        if (deflater.finished() && length < compressed.length) {
+            r.setValue(Arrays.copyOf(compressed, length), true);
+        }
+    }
+
+    /**
+     * The serialized value of <code>r</code>, uncompressed.
+     */
+    public byte[] value(Record r) {
+        byte[] stored = r.getValue();
+        if (!r.isCompressed()) {
+            return stored;
+        }
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(stored, 4, stored.length - 4);
+        byte[] value = new byte[ByteBuffer.wrap(stored).getInt()];
+        int length = 0;
+        try {
+            while (length < value.length) {
+                int count = inflater.inflate(value, length, value.length - length);
+                if (count == 0) {
+                    if (!inflater.needsDictionary()) {
+                        throw new DataFormatException("Truncated compressed value");
+                    }
+                    if (dictionary == null) {
+                        throw new IllegalStateException("The value was compressed with a preset dictionary, none is configured");
+                    }
+                    inflater.setDictionary(dictionary);
+                }
+                length += count;
+            }
+        } catch (DataFormatException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("The value was compressed with a different dictionary than the configured one", e);
+        }
+        return value;
+    }
+
+    /**
+     * Builds a preset dictionary of at most <code>size</code> bytes out of the byte sequences shared by the most
+     * <code>samples</code>, typically serialized values. The most common sequences come last, deflate encodes
+     * the closest matches with the shortest codes.
+     */
+    public static byte[] trainDictionary(Collection<byte[]> samples, int size) {
+        //For each distinct segment: the number of samples it appears in and the order it was first seen in
+        Map<ByteBuffer, int[]> counts = new HashMap<ByteBuffer, int[]>();
+        for (byte[] sample : samples) {
+            Set<ByteBuffer> seen = new HashSet<ByteBuffer>();
+            for (int i = 0; i + SEGMENT_SIZE <= sample.length; i++) {
+                ByteBuffer segment = ByteBuffer.wrap(sample, i, SEGMENT_SIZE).slice();
+                if (!seen.add(segment)) {
+                    continue;
+                }
+                int[] count = counts.get(segment);
+                if (count == null) {
+                    counts.put(segment, new int[]{1, counts.size()});
+                } else {
+                    count[0]++;
+                }
+            }
+        }
+        List<Map.Entry<ByteBuffer, int[]>> ranked = new ArrayList<Map.Entry<ByteBuffer, int[]>>();
+        for (Map.Entry<ByteBuffer, int[]> entry : counts.entrySet()) {
+            if (entry.getValue()[0] > 1) {
+                ranked.add(entry);
+            }
+        }
+        Collections.sort(ranked, new Comparator<Map.Entry<ByteBuffer, int[]>>() {
+            public int compare(Map.Entry<ByteBuffer, int[]> a, Map.Entry<ByteBuffer, int[]> b) {
+                int byCount = b.getValue()[0] - a.getValue()[0];
+                return byCount != 0 ? byCount : a.getValue()[1] - b.getValue()[1];
+            }
+        });
+        //Segments found at consecutive offsets of a longer common sequence rank next to each other, they are
+        //merged back into that sequence
+        List<ByteArrayOutputStream> pieces = new ArrayList<ByteArrayOutputStream>();
+        ByteArrayOutputStream piece = null;
+        ByteBuffer previous = null;
+        int total = 0;
+        for (Map.Entry<ByteBuffer, int[]> entry : ranked) {
+            if (total >= size) {
+                break;
+            }
+            ByteBuffer segment = entry.getKey();
+            if (previous != null && follows(previous, segment)) {
+                piece.write(segment.get(SEGMENT_SIZE - 1));
+                total++;
+            } else {
+                piece = new ByteArrayOutputStream();
+                piece.write(segment.array(), segment.arrayOffset(), SEGMENT_SIZE);
+                pieces.add(piece);
+                total += SEGMENT_SIZE;
+            }
+            previous = segment;
+        }
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream(total);
+        for (int i = pieces.size() - 1; i >= 0; i--) {
+            byte[] bytes = pieces.get(i).toByteArray();
+            dictionary.write(bytes, 0, bytes.length);
+        }
+        byte[] bytes = dictionary.toByteArray();
+        return bytes.length <= size ? bytes : Arrays.copyOfRange(bytes, bytes.length - size, bytes.length);
+    }
+
+    /**
+     * True if <code>next</code> starts with the last bytes of <code>previous</code>, shifted by one.
+     */
+    private static boolean follows(ByteBuffer previous, ByteBuffer next) {
+        for (int i = 1; i < SEGMENT_SIZE; i++) {
+            if (previous.get(i) != next.get(i - 1)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -16,26 +16,64 @@
 
 package com.alok.diskmap;
 
+import com.alok.diskmap.utils.CompactObjectConverter;
+import com.alok.diskmap.utils.ObjectConverter;
+
 import java.io.File;
+import java.util.concurrent.Executor;
 
 public class Configuration {
-    private int flushInterval;
+    public static final int DEFAULT_PAGE_COUNT = 13;
+    private int flushInterval = 1000;
+    private Durability durability = Durability.INTERVAL;
     private File dir;
     private int number;
+    private int pageCount;
     private int readerPoolSize = 3;
-    private boolean useNonBlockingReader = true;
+    private ReaderMode readerMode = ReaderMode.NON_BLOCKING;
+    private int mappedSegmentSize = 256 * 1024 * 1024;
+    private long checkpointInterval = 5 * 60 * 1000;
+    private int bulkLoadBatchSize = 100000;
+    private double compactionRatio = 0;
+    private long compactionMinSize = 16 * 1024 * 1024;
+    private long compactionCheckInterval = 10 * 1000;
+    private Compression compression = Compression.NONE;
+    private int compressionThreshold = 128;
+    private byte[] compressionDictionary;
+    private long cacheSize = 0;
+    private Executor asyncExecutor;
+    private ObjectConverter keyConverter = new CompactObjectConverter();
+    private ObjectConverter valueConverter = new CompactObjectConverter();
 
     public Configuration() {
     }
 
     public Configuration(Configuration cfg) {
         this.flushInterval = cfg.getFlushInterval();
+        this.durability = cfg.getDurability();
         this.dir = new File(cfg.getDataDir().getAbsolutePath());
         this.number = cfg.getNumber();
+        this.pageCount = cfg.getPageCount();
         this.readerPoolSize = cfg.getReaderPoolSize();
-        this.useNonBlockingReader = cfg.getUseNonBlockingReader();
+        this.readerMode = cfg.getReaderMode();
+        this.mappedSegmentSize = cfg.getMappedSegmentSize();
+        this.checkpointInterval = cfg.getCheckpointInterval();
+        this.bulkLoadBatchSize = cfg.getBulkLoadBatchSize();
+        this.compactionRatio = cfg.getCompactionRatio();
+        this.compactionMinSize = cfg.getCompactionMinSize();
+        this.compactionCheckInterval = cfg.getCompactionCheckInterval();
+        this.compression = cfg.getCompression();
+        this.compressionThreshold = cfg.getCompressionThreshold();
+        this.compressionDictionary = cfg.getCompressionDictionary();
+        this.cacheSize = cfg.getCacheSize();
+        this.asyncExecutor = cfg.getAsyncExecutor();
+        this.keyConverter = cfg.getKeyConverter();
+        this.valueConverter = cfg.getValueConverter();
     }
 
+    /**
+     * Minimum time in ms between two syncs of a data file with {@link Durability#INTERVAL}.
+     */
     public Configuration setFlushInterval(int interval) {
         this.flushInterval = interval;
         return this;
@@ -45,6 +83,15 @@ public class Configuration {
         return flushInterval;
     }
 
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public Configuration setDurability(Durability durability) {
+        this.durability = durability;
+        return this;
+    }
+
     public Configuration setDataDir(File dir) {
         this.dir = dir;
         return this;
@@ -63,6 +110,20 @@ public class Configuration {
         return number;
     }
 
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * Number of pages (data files) a map is split in, {@link #DEFAULT_PAGE_COUNT} when not set. The count is
+     * recorded in the data directory; opening an existing map with a different count repartitions it in the
+     * background, and {@link DiskBackedMap#pageCount()} reports the recorded count until that is done.
+     */
+    public Configuration setPageCount(int pageCount) {
+        this.pageCount = pageCount;
+        return this;
+    }
+
     public String getDataFileName(String extension){
         return getDataDir().getAbsolutePath() + File.separator + getNumber() + "." + extension;
     }
@@ -71,12 +132,228 @@ public class Configuration {
         return readerPoolSize;
     }
 
+    /**
+     * Number of reader threads per page used by {@link ReaderMode#NON_BLOCKING}.
+     */
+    public Configuration setReaderPoolSize(int readerPoolSize) {
+        this.readerPoolSize = readerPoolSize;
+        return this;
+    }
+
     public boolean getUseNonBlockingReader() {
-        return useNonBlockingReader;
+        return readerMode == ReaderMode.NON_BLOCKING;
     }
 
     public Configuration setUseNonBlockingReader(boolean useNonBlockingReader) {
-        this.useNonBlockingReader = useNonBlockingReader;
+        this.readerMode = useNonBlockingReader ? ReaderMode.NON_BLOCKING : ReaderMode.BLOCKING;
+        return this;
+    }
+
+    public ReaderMode getReaderMode() {
+        return readerMode;
+    }
+
+    public Configuration setReaderMode(ReaderMode readerMode) {
+        this.readerMode = readerMode;
+        return this;
+    }
+
+    public int getMappedSegmentSize() {
+        return mappedSegmentSize;
+    }
+
+    /**
+     * Size of the regions the data file is mapped in when using {@link ReaderMode#MAPPED}. Keep it small on
+     * 32 bit JVMs, the address space runs out long before the disk does.
+     */
+    public Configuration setMappedSegmentSize(int mappedSegmentSize) {
+        this.mappedSegmentSize = mappedSegmentSize;
+        return this;
+    }
+
+    public enum Durability {
+        /** Never sync, writes reach the disk whenever the OS flushes them */
+        NONE,
+        /** A write syncs the data file if the last sync is older than the flush interval, without waiting for
+         * a sync already in progress */
+        INTERVAL,
+        /** A write returns once it is on disk. Concurrent writers share syncs: one sync covers every write
+         * appended before it started */
+        SYNC
+    }
+
+    public enum ReaderMode {
+        /** Lookups seek and read the data file under a lock */
+        BLOCKING,
+        /** Lookups are queued to a pool of reader threads per page, which sort them by location */
+        NON_BLOCKING,
+        /** Lookups are positional reads issued directly from the calling thread, without any lock */
+        POSITIONAL,
+        /** The data file is memory mapped and lookups decode records straight from the mapped regions */
+        MAPPED
+    }
+
+    public long getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * Minimum time in ms between two index checkpoints of a page. A checkpoint is always written when the page
+     * is closed, a value <= 0 disables the periodic ones. Periodic checkpoints are written by the background
+     * thread of the map, the one that also compacts, never by a writer.
+     */
+    public Configuration setCheckpointInterval(long checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+        return this;
+    }
+
+    public int getBulkLoadBatchSize() {
+        return bulkLoadBatchSize;
+    }
+
+    /**
+     * Number of entries a bulk load buffers before spreading them over the pages and writing them out.
+     */
+    public Configuration setBulkLoadBatchSize(int bulkLoadBatchSize) {
+        this.bulkLoadBatchSize = bulkLoadBatchSize;
+        return this;
+    }
+
+    public double getCompactionRatio() {
+        return compactionRatio;
+    }
+
+    /**
+     * Share of a data file taken by dead records (overwritten, removed and tombstones) from which the page is
+     * compacted in the background, for instance 0.5. Off by default: a value <= 0 disables background
+     * compaction, so data files are only rewritten by {@link DiskBackedMap#gc()}.
+     */
+    public Configuration setCompactionRatio(double compactionRatio) {
+        this.compactionRatio = compactionRatio;
+        return this;
+    }
+
+    public long getCompactionMinSize() {
+        return compactionMinSize;
+    }
+
+    /**
+     * Data files smaller than this many bytes are not compacted in the background.
+     */
+    public Configuration setCompactionMinSize(long compactionMinSize) {
+        this.compactionMinSize = compactionMinSize;
+        return this;
+    }
+
+    public long getCompactionCheckInterval() {
+        return compactionCheckInterval;
+    }
+
+    /**
+     * Time in ms between two checks of the pages for garbage by the background compaction.
+     */
+    public Configuration setCompactionCheckInterval(long compactionCheckInterval) {
+        this.compactionCheckInterval = compactionCheckInterval;
+        return this;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Compression of the values written from now on. Values are read back whatever the current setting, as long
+     * as the dictionary they were compressed with is still configured.
+     */
+    public Configuration setCompression(Compression compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Serialized values shorter than this many bytes are never compressed, they rarely shrink enough to pay for it.
+     */
+    public Configuration setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+        return this;
+    }
+
+    public byte[] getCompressionDictionary() {
+        return compressionDictionary;
+    }
+
+    /**
+     * Preset dictionary for {@link Compression#DEFLATE}, typically built with
+     * {@link Compressor#trainDictionary(java.util.Collection, int)} from sample values. Small values compress far
+     * better with one. It has to be configured again, unchanged, every time the map is opened.
+     */
+    public Configuration setCompressionDictionary(byte[] compressionDictionary) {
+        this.compressionDictionary = compressionDictionary;
         return this;
     }
+
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Bytes of heap used to cache frequently read values, split evenly among the pages. 0, the default, disables
+     * the cache.
+     */
+    public Configuration setCacheSize(long cacheSize) {
+        this.cacheSize = cacheSize;
+        return this;
+    }
+
+    public Executor getAsyncExecutor() {
+        return asyncExecutor;
+    }
+
+    /**
+     * Runs the asynchronous writes and the callbacks of the asynchronous reads of {@link DiskBackedMap}. By
+     * default the map starts a pool of its own, shut down when the map is closed.
+     */
+    public Configuration setAsyncExecutor(Executor asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+        return this;
+    }
+
+    public ObjectConverter getKeyConverter() {
+        return keyConverter;
+    }
+
+    /**
+     * Encodes the keys, {@link CompactObjectConverter} by default, which also reads the keys written with Java
+     * serialization. Equal String, boxed primitive, UUID and enum keys must always be encoded to the same bytes.
+     * The class of the converter is recorded in the data directory and the map cannot be opened with another
+     * one, except with {@link CompactObjectConverter} when it was written with {@link com.alok.diskmap.utils.DefaultObjectConverter}.
+     */
+    public Configuration setKeyConverter(ObjectConverter keyConverter) {
+        this.keyConverter = keyConverter;
+        return this;
+    }
+
+    public ObjectConverter getValueConverter() {
+        return valueConverter;
+    }
+
+    /**
+     * Encodes the values, {@link CompactObjectConverter} by default, which also reads the values written with
+     * Java serialization. Like the key converter it has to be configured every time the map is opened.
+     */
+    public Configuration setValueConverter(ObjectConverter valueConverter) {
+        this.valueConverter = valueConverter;
+        return this;
+    }
+
+    public enum Compression {
+        /** Values are stored as serialized */
+        NONE,
+        /** Values are deflated, with the preset dictionary when one is configured */
+        DEFLATE
+    }
 }
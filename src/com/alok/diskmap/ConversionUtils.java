@@ -57,6 +57,10 @@ public class ConversionUtils {
         }
     }
 
+    public ConversionUtils(ObjectConverter os) {
+        this.os = os;
+    }
+
     public byte[] intToBytes(int n) {
         byte[] b = new byte[4];
         for (int i = 0; i < b.length; i++) {
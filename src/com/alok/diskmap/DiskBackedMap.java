@@ -16,13 +16,27 @@
 
 package com.alok.diskmap;
 
-import java.io.Closeable;
-import java.io.File;
-import java.io.IOException;
-import java.io.Serializable;
+import com.alok.diskmap.utils.CompactObjectConverter;
+import com.alok.diskmap.utils.DefaultObjectConverter;
+
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class DiskBackedMap<K extends Serializable, V extends Serializable> implements Map<K, V>, Closeable {
     private Logger log = Logger.getLogger(DiskBackedMap.class.getName());
@@ -46,14 +60,87 @@ public class DiskBackedMap<K extends Serializable, V extends Serializable> imple
         return store.get((K) key) != null;
     }
 
+    /**
+     * Scans the whole map, see {@link #entrySet()}.
+     */
     @Override
     public boolean containsValue(Object value) {
-        throw new UnsupportedOperationException();
+        Store<K, V>.EntryIterator entries = store.iterator();
+        try {
+            while (entries.hasNext()) {
+                V v = entries.next().getValue();
+                if (value == null ? v == null : value.equals(v)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            entries.close();
+        }
     }
 
+    /**
+     * View of the entries backed by the map. Its iterators read the pages one after the other, each sequentially
+     * with large reads, and are weakly consistent: entries not written during the iteration are returned exactly
+     * once, entries written meanwhile may be returned with their old value or be missed, and may be returned
+     * twice while the map is repartitioned. They implement {@link Closeable}, an iterator that is not run to the
+     * end must be closed as it holds off the compaction of the page it is on.
+     * <p/>
+     * Its spliterator splits by page, then by ranges of the page files, so that parallel streams scan several
+     * files at once. Like iterators, streams that stop early, e.g. with <code>findFirst</code>, should be closed.
+     */
     @Override
     public Set<java.util.Map.Entry<K, V>> entrySet() {
-        return null;
+        return new AbstractSet<Map.Entry<K, V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return store.iterator();
+            }
+
+            @Override
+            public Spliterator<Map.Entry<K, V>> spliterator() {
+                return store.spliterator();
+            }
+
+            @Override
+            public Stream<Map.Entry<K, V>> stream() {
+                return DiskBackedMap.stream(spliterator(), false);
+            }
+
+            @Override
+            public Stream<Map.Entry<K, V>> parallelStream() {
+                return DiskBackedMap.stream(spliterator(), true);
+            }
+
+            @Override
+            public int size() {
+                return DiskBackedMap.this.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof Map.Entry)) {
+                    return false;
+                }
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+                V value = get(entry.getKey());
+                return value != null && value.equals(entry.getValue());
+            }
+
+            @Override
+            public boolean remove(Object o) {
+                if (!contains(o)) {
+                    return false;
+                }
+                DiskBackedMap.this.remove(((Map.Entry<?, ?>) o).getKey());
+                return true;
+            }
+
+            @Override
+            public void clear() {
+                DiskBackedMap.this.clear();
+            }
+        };
     }
 
     @Override
@@ -62,14 +149,133 @@ public class DiskBackedMap<K extends Serializable, V extends Serializable> imple
         return store.get((K) key);
     }
 
+    /**
+     * Lookup of the maps keyed by a primitive type, the key is not boxed unless the value cache is enabled.
+     */
+    V get(PrimitiveKey<K> key) {
+        return store.get(key);
+    }
+
+    /**
+     * Presence lookup of the maps keyed by a primitive type, the value is not read from the cache nor decoded.
+     */
+    boolean containsKey(PrimitiveKey<K> key) {
+        return store.contains(key);
+    }
+
+    /**
+     * Looks up many keys at once, much faster than repeated gets: the keys are grouped by page and each page
+     * reads the records of its keys in file order, coalescing the records that lie close to each other. The
+     * pages are read one after the other on the calling thread.
+     *
+     * @return the values found, in the iteration order of <code>keys</code>. Keys that are not in the map are
+     *         left out.
+     */
+    public Map<K, V> getAll(Collection<? extends K> keys) {
+        return store.getAll(keys);
+    }
+
+    /**
+     * The value of <code>key</code> as encoded by the value converter, see {@link Configuration#setValueConverter},
+     * without decoding it. Meant for callers that only pass values through, such as proxies and caches: with
+     * {@link #putBytes} they never pay for the serialization of the values.
+     *
+     * @return a copy owned by the caller, null if the key is not in the map.
+     */
+    public byte[] getBytes(K key) {
+        return store.getBytes(key);
+    }
+
+    /**
+     * Stores <code>value</code>, which must be encoded the way the value converter encodes values, as the value of
+     * <code>key</code>. The array is written as is, without being copied, and must not be modified until the call
+     * returns.
+     */
+    public void putBytes(K key, byte[] value) {
+        store.saveBytes(key, value);
+    }
+
+    /**
+     * Looks <code>key</code> up without blocking the caller. With {@link Configuration.ReaderMode#NON_BLOCKING}
+     * the read is queued to the page readers with the other reads in flight, so that many lookups issued at once
+     * are served in file order. The future completes on a thread of the async executor, see
+     * {@link Configuration#setAsyncExecutor}, unless the value was already available when it is returned.
+     */
+    public CompletableFuture<V> getAsync(K key) {
+        return store.getAsync(key);
+    }
+
+    /**
+     * Asynchronous {@link #put}, run on the async executor. Writes of keys sharing a lock stripe, and so the
+     * writes of a key, are applied in the order they are issued.
+     */
+    public CompletableFuture<V> putAsync(K key, V value) {
+        return store.saveAsync(key, value);
+    }
+
+    /**
+     * Asynchronous {@link #remove}, ordered with {@link #putAsync} for the same key.
+     */
+    public CompletableFuture<V> removeAsync(K key) {
+        return store.removeAsync(key);
+    }
+
     @Override
     public boolean isEmpty() {
         return store.size() == 0;
     }
 
+    /**
+     * View of the keys backed by the map, iterated like {@link #entrySet()}.
+     */
     @Override
     public Set<K> keySet() {
-        throw new UnsupportedOperationException();
+        return new AbstractSet<K>() {
+            @Override
+            public Iterator<K> iterator() {
+                final Store<K, V>.EntryIterator entries = store.iterator();
+                return new ViewIterator<K>(entries) {
+                    public K next() {
+                        return entries.next().getKey();
+                    }
+                };
+            }
+
+            @Override
+            public Spliterator<K> spliterator() {
+                return new ViewSpliterator<K>(store.spliterator(), true);
+            }
+
+            @Override
+            public Stream<K> stream() {
+                return DiskBackedMap.stream(spliterator(), false);
+            }
+
+            @Override
+            public Stream<K> parallelStream() {
+                return DiskBackedMap.stream(spliterator(), true);
+            }
+
+            @Override
+            public int size() {
+                return DiskBackedMap.this.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return containsKey(o);
+            }
+
+            @Override
+            public boolean remove(Object o) {
+                return DiskBackedMap.this.remove(o) != null;
+            }
+
+            @Override
+            public void clear() {
+                DiskBackedMap.this.clear();
+            }
+        };
     }
 
     @Override
@@ -79,9 +285,23 @@ public class DiskBackedMap<K extends Serializable, V extends Serializable> imple
 
     @Override
     public void putAll(Map<? extends K, ? extends V> m) {
-        for (K key : m.keySet()) {
-            put(key, m.get(key));
+        store.putAll(m.entrySet().iterator(), false);
+    }
+
+    /**
+     * Loads a large number of entries much faster than repeated puts: the input is cut in batches that are
+     * spread over the pages, and each page serializes and appends its share of a batch in one go, in parallel
+     * with the others. Keys already present are replaced.
+     *
+     * @param empty true when the map is empty and the keys are all distinct, which skips looking up previous
+     *              records. Duplicate keys loaded this way are all kept on disk and only one of them is returned
+     *              by lookups.
+     */
+    public void bulkLoad(Iterator<? extends Map.Entry<? extends K, ? extends V>> entries, boolean empty) {
+        if (empty && store.size() != 0) {
+            throw new IllegalStateException("The map is not empty");
         }
+        store.putAll(entries, empty);
     }
 
     @Override
@@ -96,23 +316,193 @@ public class DiskBackedMap<K extends Serializable, V extends Serializable> imple
         return store.size();
     }
 
+    /**
+     * View of the values backed by the map, iterated like {@link #entrySet()}.
+     */
     @Override
     public Collection<V> values() {
-        throw new UnsupportedOperationException();
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                final Store<K, V>.EntryIterator entries = store.iterator();
+                return new ViewIterator<V>(entries) {
+                    public V next() {
+                        return entries.next().getValue();
+                    }
+                };
+            }
+
+            @Override
+            public Spliterator<V> spliterator() {
+                return new ViewSpliterator<V>(store.spliterator(), false);
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return containsValue(o);
+            }
+
+            @Override
+            public Stream<V> stream() {
+                return DiskBackedMap.stream(spliterator(), false);
+            }
+
+            @Override
+            public Stream<V> parallelStream() {
+                return DiskBackedMap.stream(spliterator(), true);
+            }
+
+            @Override
+            public int size() {
+                return DiskBackedMap.this.size();
+            }
+
+            @Override
+            public void clear() {
+                DiskBackedMap.this.clear();
+            }
+        };
+    }
+
+    /**
+     * Spliterator of the keys or of the values, splitting like the entry spliterator.
+     */
+    private static class ViewSpliterator<T> implements Spliterator<T>, Closeable {
+        private final Spliterator<? extends Map.Entry<?, ?>> entries;
+        private final boolean keys;
+
+        private ViewSpliterator(Spliterator<? extends Map.Entry<?, ?>> entries, boolean keys) {
+            this.entries = entries;
+            this.keys = keys;
+        }
+
+        public boolean tryAdvance(final Consumer<? super T> action) {
+            return entries.tryAdvance(new Consumer<Map.Entry<?, ?>>() {
+                public void accept(Map.Entry<?, ?> entry) {
+                    action.accept(element(entry));
+                }
+            });
+        }
+
+        public void forEachRemaining(final Consumer<? super T> action) {
+            entries.forEachRemaining(new Consumer<Map.Entry<?, ?>>() {
+                public void accept(Map.Entry<?, ?> entry) {
+                    action.accept(element(entry));
+                }
+            });
+        }
+
+        @SuppressWarnings("unchecked")
+        private T element(Map.Entry<?, ?> entry) {
+            return (T) (keys ? entry.getKey() : entry.getValue());
+        }
+
+        public Spliterator<T> trySplit() {
+            Spliterator<? extends Map.Entry<?, ?>> split = entries.trySplit();
+            return split == null ? null : new ViewSpliterator<T>(split, keys);
+        }
+
+        public long estimateSize() {
+            return entries.estimateSize();
+        }
+
+        public int characteristics() {
+            return entries.characteristics();
+        }
+
+        public void close() {
+            closeSplit(entries);
+        }
+    }
+
+    /**
+     * Stream over <code>spliterator</code> that releases the pages it pins when closed, for streams that stop
+     * before reading everything, like <code>findFirst</code> or <code>anyMatch</code>.
+     */
+    private static <T> Stream<T> stream(final Spliterator<T> spliterator, boolean parallel) {
+        return StreamSupport.stream(spliterator, parallel).onClose(new Runnable() {
+            public void run() {
+                closeSplit(spliterator);
+            }
+        });
+    }
+
+    private static void closeSplit(Spliterator<?> spliterator) {
+        try {
+            ((Closeable) spliterator).close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Iterator of a view, delegating everything but <code>next</code> to the entry iterator.
+     */
+    private abstract static class ViewIterator<T> implements Iterator<T>, Closeable {
+        private final Iterator<?> entries;
+
+        private ViewIterator(Iterator<?> entries) {
+            this.entries = entries;
+        }
+
+        public boolean hasNext() {
+            return entries.hasNext();
+        }
+
+        public void remove() {
+            entries.remove();
+        }
+
+        public void close() throws IOException {
+            ((Closeable) entries).close();
+        }
     }
 
     public long sizeOnDisk(){
         return store.sizeOnDisk();
     }
 
+    /**
+     * Counters of the value cache of every page, see {@link Configuration#setCacheSize(long)}.
+     */
+    public ValueCache.Stats cacheStats() {
+        return store.cacheStats();
+    }
+
     public void close() throws IOException {
         store.close();
     }
 
+    /**
+     * Compacts every page now, regardless of how much garbage it holds. Pages stay readable and writable while
+     * they are compacted. Pages can also be compacted in the background, see
+     * {@link Configuration#setCompactionRatio(double)}.
+     */
     public void gc() throws Exception {
         store.vacuum();
     }
 
+    /**
+     * Changes the number of pages (data files) the map is spread over. Each page serializes its writes, so
+     * the page count bounds write parallelism. Returns immediately, records are moved in the background.
+     */
+    public void repartition(int pageCount) {
+        store.repartition(pageCount);
+    }
+
+    /**
+     * Number of pages the records are in. While the map is repartitioned, including by the repartitioning
+     * started when it is opened with a different {@link Configuration#setPageCount(int)}, this is the count
+     * before the repartitioning until it is done, see {@link #isRepartitioning()}.
+     */
+    public int pageCount() {
+        return store.pageCount();
+    }
+
+    public boolean isRepartitioning() {
+        return store.isRepartitioning();
+    }
+
     @Override
     public void finalize() throws Throwable {
         this.close();
@@ -120,58 +510,863 @@ public class DiskBackedMap<K extends Serializable, V extends Serializable> imple
     }
 
     public class Store<K extends Serializable, V extends Serializable> implements Closeable {
-        private List<Page<K, V>> pages;
-        private int magicNumber = 13;
+        private static final String META_FILE = "store.properties";
+        //Key converter of the stores that do not record theirs, all written with Java serialization
+        private static final String LEGACY_KEY_CONVERTER = DefaultObjectConverter.class.getName();
+        private static final int STRIPES = 1024;
+        private final Configuration cfg;
+        private final ReentrantReadWriteLock[] stripes = new ReentrantReadWriteLock[STRIPES];
+        private volatile Layout layout;
+        //Layout records are being moved to, only set while repartitioning
+        private volatile Layout target;
+        private Thread repartitioner;
+        private Thread compactor;
+        private final Object compactorMonitor = new Object();
+        private volatile boolean closing;
+        //Last asynchronous write issued per stripe, the next one on the stripe runs after it
+        private final CompletableFuture<?>[] writeTails = new CompletableFuture<?>[STRIPES];
+        private ExecutorService asyncPool;
 
         public Store(Configuration cfg) {
+            this.cfg = cfg;
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new ReentrantReadWriteLock();
+            }
             init(cfg);
         }
 
         private void init(Configuration cfg) {
-            pages = new ArrayList<Page<K, V>>(magicNumber);
-            for (int i = 0; i < magicNumber; i++) {
-                Configuration config = new Configuration(cfg);
-                config.setNumber(i);
-                pages.add(new Page<K, V>(config));
+            Properties meta = loadMeta();
+            if (meta == null) {
+                //Stores created before the page count was configurable always had 13 pages
+                boolean legacy = new File(cfg.getDataDir(), "0.dat").exists();
+                checkKeyConverter(legacy ? LEGACY_KEY_CONVERTER : null);
+                int pageCount = legacy || cfg.getPageCount() <= 0 ? Configuration.DEFAULT_PAGE_COUNT : cfg.getPageCount();
+                layout = new Layout(0, pageCount);
+            } else {
+                checkKeyConverter(meta.getProperty("keyConverter", LEGACY_KEY_CONVERTER));
+                layout = new Layout(Integer.parseInt(meta.getProperty("generation")), Integer.parseInt(meta.getProperty("pageCount")));
+                if (meta.getProperty("targetPageCount") != null) {
+                    target = new Layout(Integer.parseInt(meta.getProperty("targetGeneration")), Integer.parseInt(meta.getProperty("targetPageCount")));
+                }
+            }
+            saveMeta();
+            if (target != null) {
+                log.log(Level.INFO, String.format("Resuming repartitioning of %s from %d to %d pages", cfg.getDataDir(), layout.pages.size(), target.pages.size()));
+                startRepartitioner();
+            } else if (cfg.getPageCount() > 0 && cfg.getPageCount() != layout.pages.size()) {
+                repartition(cfg.getPageCount());
+            }
+            if (cfg.getCompactionRatio() > 0 || cfg.getCheckpointInterval() > 0) {
+                startCompactor();
             }
         }
 
         public V save(K key, V value) {
-            Page<K, V> kvPage = findPage(key);
-            return kvPage.save(key, value);
+            ReentrantReadWriteLock lock = stripe(key);
+            lock.writeLock().lock();
+            try {
+                Layout moving = target;
+                if (moving == null) {
+                    return layout.findPage(key).save(key, value);
+                }
+                V saved = moving.findPage(key).save(key, value);
+                layout.findPage(key).remove(key);
+                return saved;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        public void saveBytes(K key, byte[] value) {
+            ReentrantReadWriteLock lock = stripe(key);
+            lock.writeLock().lock();
+            try {
+                Layout moving = target;
+                if (moving == null) {
+                    layout.findPage(key).saveBytes(key, value);
+                    return;
+                }
+                moving.findPage(key).saveBytes(key, value);
+                layout.findPage(key).remove(key);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        public byte[] getBytes(K key) {
+            ReentrantReadWriteLock lock = stripe(key);
+            lock.readLock().lock();
+            try {
+                byte[] value = layout.findPage(key).loadBytes(key);
+                Layout moving = target;
+                if (value == null && moving != null) {
+                    value = moving.findPage(key).loadBytes(key);
+                }
+                return value;
+            } finally {
+                lock.readLock().unlock();
+            }
         }
 
         public V get(K key) {
-            return  findPage(key).load(key);
+            ReentrantReadWriteLock lock = stripe(key);
+            lock.readLock().lock();
+            try {
+                V value = layout.findPage(key).load(key);
+                Layout moving = target;
+                if (value == null && moving != null) {
+                    value = moving.findPage(key).load(key);
+                }
+                return value;
+            } finally {
+                lock.readLock().unlock();
+            }
         }
 
-        private Page<K, V> findPage(K key) {
-            int idx = key.hashCode() % magicNumber;
-            return pages.get(Math.abs(idx));
+        /**
+         * {@link #get} of a key that is not boxed, see {@link Page#load(PrimitiveKey)}.
+         */
+        public V get(PrimitiveKey<K> key) {
+            ReentrantReadWriteLock lock = stripes[stripeIndex(key.hash())];
+            lock.readLock().lock();
+            try {
+                V value = layout.findPage(key.hash()).load(key);
+                Layout moving = target;
+                if (value == null && moving != null) {
+                    value = moving.findPage(key.hash()).load(key);
+                }
+                return value;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        public boolean contains(PrimitiveKey<K> key) {
+            ReentrantReadWriteLock lock = stripes[stripeIndex(key.hash())];
+            lock.readLock().lock();
+            try {
+                if (layout.findPage(key.hash()).contains(key)) {
+                    return true;
+                }
+                Layout moving = target;
+                return moving != null && moving.findPage(key.hash()).contains(key);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Holds the read locks of the stripes of <code>keys</code> while their pages are read, taken in stripe
+         * order like {@link #lockAll()}.
+         */
+        public Map<K, V> getAll(Collection<? extends K> keys) {
+            Set<K> distinct = new LinkedHashSet<K>(keys);
+            SortedSet<Integer> locked = new TreeSet<Integer>();
+            for (K key : distinct) {
+                locked.add(stripeIndex(key));
+            }
+            Map<K, V> found;
+            for (int stripe : locked) {
+                stripes[stripe].readLock().lock();
+            }
+            try {
+                found = loadAll(layout, distinct);
+                Layout moving = target;
+                if (moving != null && found.size() < distinct.size()) {
+                    List<K> missing = new ArrayList<K>();
+                    for (K key : distinct) {
+                        if (!found.containsKey(key)) {
+                            missing.add(key);
+                        }
+                    }
+                    found.putAll(loadAll(moving, missing));
+                }
+            } finally {
+                for (int stripe : locked) {
+                    stripes[stripe].readLock().unlock();
+                }
+            }
+            Map<K, V> values = new LinkedHashMap<K, V>();
+            for (K key : distinct) {
+                V value = found.get(key);
+                if (value != null) {
+                    values.put(key, value);
+                }
+            }
+            return values;
+        }
+
+        /**
+         * Loads the keys page by page on the calling thread. Not on the async executor: the caller holds stripe
+         * read locks that an asynchronous write queued ahead on the executor may be waiting for.
+         */
+        private Map<K, V> loadAll(Layout layout, Collection<K> keys) {
+            Map<Page<K, V>, List<K>> partitions = new LinkedHashMap<Page<K, V>, List<K>>();
+            for (K key : keys) {
+                Page<K, V> page = layout.findPage(key);
+                List<K> partition = partitions.get(page);
+                if (partition == null) {
+                    partition = new ArrayList<K>();
+                    partitions.put(page, partition);
+                }
+                partition.add(key);
+            }
+            Map<K, V> values = new HashMap<K, V>();
+            for (Map.Entry<Page<K, V>, List<K>> partition : partitions.entrySet()) {
+                values.putAll(partition.getKey().loadAll(partition.getValue()));
+            }
+            return values;
+        }
+
+        /**
+         * Starts the load on the page of the current layout, and on the page of the target layout when the key
+         * is not found and the store is being repartitioned.
+         */
+        public CompletableFuture<V> getAsync(final K key) {
+            CompletableFuture<V> value;
+            ReentrantReadWriteLock lock = stripe(key);
+            lock.readLock().lock();
+            try {
+                value = layout.findPage(key).loadAsync(key);
+                final Layout moving = target;
+                if (moving != null) {
+                    value = value.thenCompose(new Function<V, CompletableFuture<V>>() {
+                        public CompletableFuture<V> apply(V found) {
+                            return found != null ? CompletableFuture.completedFuture(found) : moving.findPage(key).loadAsync(key);
+                        }
+                    });
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (value.isDone()) {
+                return value;
+            }
+            //Callbacks would otherwise run on the page reader threads and hold up the reads queued behind them
+            return value.thenApplyAsync(new Function<V, V>() {
+                public V apply(V found) {
+                    return found;
+                }
+            }, asyncExecutor());
+        }
+
+        public CompletableFuture<V> saveAsync(final K key, final V value) {
+            return write(key, new Supplier<V>() {
+                public V get() {
+                    return save(key, value);
+                }
+            });
+        }
+
+        public CompletableFuture<V> removeAsync(final K key) {
+            return write(key, new Supplier<V>() {
+                public V get() {
+                    V value = Store.this.get(key);
+                    remove(key);
+                    return value;
+                }
+            });
+        }
+
+        /**
+         * Runs <code>write</code> on the async executor once the previous asynchronous write of the stripe of
+         * <code>key</code> is done, whether it failed or not.
+         */
+        private CompletableFuture<V> write(K key, final Supplier<V> write) {
+            Executor executor = asyncExecutor();
+            int stripe = stripeIndex(key);
+            synchronized (writeTails) {
+                if (closing) {
+                    throw new IllegalStateException("The store is closed");
+                }
+                CompletableFuture<?> tail = writeTails[stripe];
+                CompletableFuture<V> result;
+                if (tail == null || tail.isDone()) {
+                    result = CompletableFuture.supplyAsync(write, executor);
+                } else {
+                    result = tail.handleAsync(new BiFunction<Object, Throwable, V>() {
+                        public V apply(Object previous, Throwable error) {
+                            return write.get();
+                        }
+                    }, executor);
+                }
+                writeTails[stripe] = result;
+                return result;
+            }
+        }
+
+        private synchronized Executor asyncExecutor() {
+            if (cfg.getAsyncExecutor() != null) {
+                return cfg.getAsyncExecutor();
+            }
+            if (asyncPool == null) {
+                asyncPool = Executors.newCachedThreadPool(new ThreadFactory() {
+                    private int count = 0;
+
+                    public synchronized Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "Async-" + cfg.getDataDir().getName() + "-" + (count++));
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            return asyncPool;
+        }
+
+        /**
+         * Waits for the asynchronous writes issued so far, new ones are refused from then on.
+         */
+        private void awaitWrites() {
+            List<CompletableFuture<?>> tails = new ArrayList<CompletableFuture<?>>();
+            synchronized (writeTails) {
+                for (CompletableFuture<?> tail : writeTails) {
+                    if (tail != null) {
+                        tails.add(tail);
+                    }
+                }
+            }
+            for (CompletableFuture<?> tail : tails) {
+                try {
+                    tail.join();
+                } catch (RuntimeException e) {
+                    //Reported to whoever issued the write
+                }
+            }
         }
 
         private void remove(K  key) {
-            findPage(key).remove(key);
+            ReentrantReadWriteLock lock = stripe(key);
+            lock.writeLock().lock();
+            try {
+                layout.findPage(key).remove(key);
+                Layout moving = target;
+                if (moving != null) {
+                    moving.findPage(key).remove(key);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Writes <code>entries</code> batch by batch, see {@link DiskBackedMap#bulkLoad}.
+         */
+        public void putAll(Iterator<? extends Map.Entry<? extends K, ? extends V>> entries, boolean absent) {
+            int batchSize = Math.max(1, cfg.getBulkLoadBatchSize());
+            ExecutorService executor = null;
+            try {
+                List<Map.Entry<K, V>> batch = new ArrayList<Map.Entry<K, V>>();
+                while (entries.hasNext()) {
+                    batch.clear();
+                    while (entries.hasNext() && batch.size() < batchSize) {
+                        Map.Entry<? extends K, ? extends V> entry = entries.next();
+                        batch.add(new AbstractMap.SimpleImmutableEntry<K, V>(entry.getKey(), entry.getValue()));
+                    }
+                    if (executor == null && batch.size() > 1) {
+                        executor = newLoader(layout.pages.size());
+                    }
+                    writeBatch(batch, absent, executor);
+                }
+            } finally {
+                if (executor != null) {
+                    executor.shutdown();
+                }
+            }
+        }
+
+        private ExecutorService newLoader(int pageCount) {
+            int threads = Math.max(1, Math.min(pageCount, Runtime.getRuntime().availableProcessors()));
+            return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private int count = 0;
+
+                public synchronized Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "BulkLoader-" + cfg.getDataDir().getName() + "-" + (count++));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        private void writeBatch(List<Map.Entry<K, V>> batch, final boolean absent, ExecutorService executor) {
+            //Shared stripe locks keep repartitioning from starting in the middle of a batch, single writes are
+            //held off as well so each key is written by one thread at a time
+            lockAllShared();
+            boolean bulk = target == null;
+            try {
+                if (bulk) {
+                    Map<Page<K, V>, Map<K, V>> partitions = new LinkedHashMap<Page<K, V>, Map<K, V>>();
+                    for (Map.Entry<K, V> entry : batch) {
+                        Page<K, V> page = layout.findPage(entry.getKey());
+                        Map<K, V> partition = partitions.get(page);
+                        if (partition == null) {
+                            partition = new LinkedHashMap<K, V>();
+                            partitions.put(page, partition);
+                        }
+                        partition.put(entry.getKey(), entry.getValue());
+                    }
+                    List<Future<?>> results = new ArrayList<Future<?>>(partitions.size());
+                    for (final Map.Entry<Page<K, V>, Map<K, V>> partition : partitions.entrySet()) {
+                        Runnable task = new Runnable() {
+                            public void run() {
+                                partition.getKey().saveAll(partition.getValue(), absent);
+                            }
+                        };
+                        if (executor == null) {
+                            task.run();
+                        } else {
+                            results.add(executor.submit(task));
+                        }
+                    }
+                    waitFor(results);
+                }
+            } finally {
+                unlockAllShared();
+            }
+            if (!bulk) {
+                //Records are being moved to a new layout, take the regular path that knows about both
+                for (Map.Entry<K, V> entry : batch) {
+                    save(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        private void waitFor(List<Future<?>> results) {
+            RuntimeException failure = null;
+            for (Future<?> result : results) {
+                try {
+                    result.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        public EntryIterator iterator() {
+            return new EntryIterator(pages());
+        }
+
+        public Spliterator<Map.Entry<K, V>> spliterator() {
+            return new EntrySpliterator(pages());
+        }
+
+        /**
+         * Splits in halves of the pages, then each page with {@link Page#spliterator()}. A page is only pinned
+         * once a split of its own is taken or it is read, and until the split runs to the end or the spliterator
+         * it was split from is closed.
+         */
+        private class EntrySpliterator implements Spliterator<Map.Entry<K, V>>, Closeable {
+            private final List<Page<K, V>> pages;
+            //Page splits taken from this spliterator and the ones split from it
+            private final List<Spliterator<Map.Entry<K, V>>> opened;
+            private Spliterator<Map.Entry<K, V>> current;
+
+            private EntrySpliterator(List<Page<K, V>> pages) {
+                this(pages, Collections.synchronizedList(new ArrayList<Spliterator<Map.Entry<K, V>>>()));
+            }
+
+            private EntrySpliterator(List<Page<K, V>> pages, List<Spliterator<Map.Entry<K, V>>> opened) {
+                this.pages = new ArrayList<Page<K, V>>(pages);
+                this.opened = opened;
+            }
+
+            private Spliterator<Map.Entry<K, V>> open(Spliterator<Map.Entry<K, V>> split) {
+                if (split != null) {
+                    opened.add(split);
+                }
+                return split;
+            }
+
+            /**
+             * Releases the pages pinned by the splits of the spliterator, read or not.
+             */
+            public void close() {
+                List<Spliterator<Map.Entry<K, V>>> splits;
+                synchronized (opened) {
+                    splits = new ArrayList<Spliterator<Map.Entry<K, V>>>(opened);
+                    opened.clear();
+                }
+                pages.clear();
+                for (Spliterator<Map.Entry<K, V>> split : splits) {
+                    closeSplit(split);
+                }
+            }
+
+            public boolean tryAdvance(Consumer<? super Map.Entry<K, V>> action) {
+                while (true) {
+                    if (current == null) {
+                        if (pages.isEmpty()) {
+                            return false;
+                        }
+                        current = open(pages.remove(0).spliterator());
+                    }
+                    if (current.tryAdvance(action)) {
+                        return true;
+                    }
+                    current = null;
+                }
+            }
+
+            public void forEachRemaining(Consumer<? super Map.Entry<K, V>> action) {
+                if (current != null) {
+                    current.forEachRemaining(action);
+                    current = null;
+                }
+                while (!pages.isEmpty()) {
+                    open(pages.remove(0).spliterator()).forEachRemaining(action);
+                }
+            }
+
+            public Spliterator<Map.Entry<K, V>> trySplit() {
+                if (current == null && pages.size() > 1) {
+                    List<Page<K, V>> first = pages.subList(0, pages.size() / 2);
+                    EntrySpliterator split = new EntrySpliterator(first, opened);
+                    first.clear();
+                    return split;
+                }
+                if (current == null && pages.size() == 1) {
+                    current = open(pages.remove(0).spliterator());
+                }
+                return current != null ? open(current.trySplit()) : null;
+            }
+
+            public long estimateSize() {
+                long size = current != null ? current.estimateSize() : 0;
+                for (Page<K, V> page : pages) {
+                    size += page.keyCount();
+                }
+                return size;
+            }
+
+            public int characteristics() {
+                return Spliterator.CONCURRENT | Spliterator.NONNULL;
+            }
+        }
+
+        /**
+         * Goes through the pages one at a time with a {@link Page.Cursor}, only the page being read is pinned.
+         */
+        private class EntryIterator implements Iterator<Map.Entry<K, V>>, Closeable {
+            private final Iterator<Page<K, V>> pages;
+            private Page<K, V>.Cursor cursor;
+            private K last;
+
+            private EntryIterator(List<Page<K, V>> pages) {
+                this.pages = pages.iterator();
+            }
+
+            public boolean hasNext() {
+                while (cursor == null || !cursor.hasNext()) {
+                    if (!pages.hasNext()) {
+                        cursor = null;
+                        return false;
+                    }
+                    cursor = pages.next().iterator();
+                }
+                return true;
+            }
+
+            public Map.Entry<K, V> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<K, V> entry = cursor.next();
+                last = entry.getKey();
+                return entry;
+            }
+
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+                Store.this.remove(last);
+                last = null;
+            }
+
+            public void close() {
+                if (cursor != null) {
+                    cursor.close();
+                    cursor = null;
+                }
+                while (pages.hasNext()) {
+                    pages.next();
+                }
+            }
+        }
+
+        private ReentrantReadWriteLock stripe(K key) {
+            return stripes[stripeIndex(key)];
+        }
+
+        private int stripeIndex(K key) {
+            return stripeIndex(key.hashCode());
+        }
+
+        private int stripeIndex(int hash) {
+            return (hash & 0x7fffffff) % STRIPES;
         }
 
         private int size() {
             int size = 0;
-            for (Page<K, V> page : pages) {
-                size = page.keyCount();
+            for (Page<K, V> page : pages()) {
+                size += page.keyCount();
             }
             return size;
         }
 
-        public synchronized void close() {
-            for (Page page : pages) {
-                page.close();
+        public int pageCount() {
+            return layout.pages.size();
+        }
+
+        /**
+         * Starts moving every record to a layout of <code>pageCount</code> pages. Records are streamed to the new
+         * pages by a background thread while the store keeps serving reads and writes, writes go straight to the
+         * new layout. The move is recorded in the data directory and resumed if the store is closed before it is
+         * done.
+         */
+        public synchronized void repartition(int pageCount) {
+            if (pageCount <= 0) {
+                throw new IllegalArgumentException("Page count must be positive: " + pageCount);
+            }
+            if (target != null) {
+                throw new IllegalStateException("Repartitioning to " + target.pages.size() + " pages is already in progress");
+            }
+            if (pageCount == layout.pages.size()) {
+                return;
+            }
+            lockAll();
+            try {
+                target = new Layout(layout.generation + 1, pageCount);
+                saveMeta();
+            } finally {
+                unlockAll();
+            }
+            log.log(Level.INFO, String.format("Repartitioning %s from %d to %d pages", cfg.getDataDir(), layout.pages.size(), pageCount));
+            startRepartitioner();
+        }
+
+        public boolean isRepartitioning() {
+            return target != null;
+        }
+
+        private void startRepartitioner() {
+            repartitioner = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        moveAll();
+                    } catch (Exception e) {
+                        log.log(Level.SEVERE, "Repartitioning of " + cfg.getDataDir() + " failed, it will be resumed when the store is reopened", e);
+                    }
+                }
+            }, "Repartitioner-" + cfg.getDataDir().getName());
+            repartitioner.setDaemon(true);
+            repartitioner.start();
+        }
+
+        /**
+         * Background thread writing the index checkpoints that are due and, when enabled, compacting the pages
+         * whose share of dead records crossed the configured ratio, one page at a time.
+         */
+        private void startCompactor() {
+            final boolean compaction = cfg.getCompactionRatio() > 0;
+            long interval = compaction ? cfg.getCompactionCheckInterval() : cfg.getCheckpointInterval();
+            if (compaction && cfg.getCheckpointInterval() > 0) {
+                interval = Math.min(interval, cfg.getCheckpointInterval());
+            }
+            final long wait = Math.max(1, interval);
+            compactor = new Thread(new Runnable() {
+                public void run() {
+                    while (!closing) {
+                        synchronized (compactorMonitor) {
+                            try {
+                                compactorMonitor.wait(wait);
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                        for (Page<K, V> page : pages()) {
+                            if (closing) {
+                                break;
+                            }
+                            try {
+                                page.checkpointIfDue();
+                            } catch (RuntimeException e) {
+                                log.log(Level.SEVERE, "Checkpoint of " + page + " failed", e);
+                            }
+                        }
+                        if (!compaction) {
+                            continue;
+                        }
+                        for (Page<K, V> page : compactablePages()) {
+                            if (closing) {
+                                break;
+                            }
+                            try {
+                                if (page.needsCompaction()) {
+                                    page.compact();
+                                }
+                            } catch (RuntimeException e) {
+                                log.log(Level.SEVERE, "Compaction of " + page + " failed", e);
+                            }
+                        }
+                    }
+                }
+            }, "Compactor-" + cfg.getDataDir().getName());
+            compactor.setDaemon(true);
+            compactor.start();
+        }
+
+        private List<Page<K, V>> compactablePages() {
+            Layout moving = target;
+            //Pages being drained by a repartition go away anyway, leave them alone
+            return moving != null ? moving.pages : layout.pages;
+        }
+
+        private void moveAll() throws IOException {
+            long time = System.currentTimeMillis();
+            for (Page<K, V> page : layout.pages) {
+                while (!closing && page.keyCount() > 0) {
+                    int moved = 0;
+                    Page<K, V>.Cursor entries = page.iterator();
+                    try {
+                        while (!closing && entries.hasNext()) {
+                            try {
+                                if (move(page, entries.next().getKey())) {
+                                    moved++;
+                                }
+                            } catch (RuntimeException e) {
+                                //The record went away (clear) after the iterator was created
+                                log.log(Level.FINE, "Skipping record", e);
+                            }
+                        }
+                    } finally {
+                        entries.close();
+                    }
+                    if (moved == 0) {
+                        log.log(Level.WARNING, String.format("%s: %d index entries have no live record left, dropping them", page, page.keyCount()));
+                        break;
+                    }
+                }
+            }
+            if (closing) {
+                return;
+            }
+            Layout old;
+            lockAll();
+            try {
+                old = layout;
+                layout = target;
+                target = null;
+                saveMeta();
+            } finally {
+                unlockAll();
+            }
+            for (Page<K, V> page : old.pages) {
+                page.delete();
+            }
+            if (old.generation > 0) {
+                old.dir.delete();
+            }
+            log.log(Level.INFO, String.format("Repartitioned %s to %d pages in %d ms", cfg.getDataDir(), layout.pages.size(), System.currentTimeMillis() - time));
+        }
+
+        private boolean move(Page<K, V> from, K key) {
+            ReentrantReadWriteLock lock = stripe(key);
+            lock.writeLock().lock();
+            try {
+                V value = from.load(key);
+                if (value == null) {
+                    return false;
+                }
+                Page<K, V> to = target.findPage(key);
+                if (to.load(key) == null) {
+                    to.save(key, value);
+                }
+                from.remove(key);
+                return true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private void lockAll() {
+            for (ReentrantReadWriteLock stripe : stripes) {
+                stripe.writeLock().lock();
+            }
+        }
+
+        private void unlockAll() {
+            for (ReentrantReadWriteLock stripe : stripes) {
+                stripe.writeLock().unlock();
+            }
+        }
+
+        private void lockAllShared() {
+            for (ReentrantReadWriteLock stripe : stripes) {
+                stripe.readLock().lock();
+            }
+        }
+
+        private void unlockAllShared() {
+            for (ReentrantReadWriteLock stripe : stripes) {
+                stripe.readLock().unlock();
+            }
+        }
+
+        private List<Page<K, V>> pages() {
+            List<Page<K, V>> pages = new ArrayList<Page<K, V>>(layout.pages);
+            Layout moving = target;
+            if (moving != null) {
+                pages.addAll(moving.pages);
+            }
+            return pages;
+        }
+
+        public void close() {
+            synchronized (writeTails) {
+                closing = true;
+            }
+            awaitWrites();
+            synchronized (compactorMonitor) {
+                compactorMonitor.notifyAll();
+            }
+            join(repartitioner);
+            synchronized (this) {
+                //Stops a running compaction, it is resumed when the store is opened again
+                for (Page page : pages()) {
+                    page.close();
+                }
+            }
+            join(compactor);
+            synchronized (this) {
+                if (asyncPool != null) {
+                    asyncPool.shutdown();
+                }
+            }
+        }
+
+        private void join(Thread thread) {
+            if (thread != null) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
             }
         }
 
         public void vacuum() throws Exception {
             log.log(Level.INFO, "Starting gc process");
             long time = 0;
-            for (Page<K, V> page : pages) {
+            for (Page<K, V> page : compactablePages()) {
                 long pTime = System.currentTimeMillis();
                 log.log(Level.INFO, "Started Vacuuming page:" + page.toString());
                 page.vacuum();
@@ -182,18 +1377,131 @@ public class DiskBackedMap<K extends Serializable, V extends Serializable> imple
             log.log(Level.INFO, "Vacuum Complete:" + time + " ms");
         }
 
+        public ValueCache.Stats cacheStats() {
+            ValueCache.Stats stats = new ValueCache.Stats(0, 0, 0, 0, 0, 0);
+            for (Page<K, V> page : pages()) {
+                stats = stats.add(page.cacheStats());
+            }
+            return stats;
+        }
+
         public long sizeOnDisk() {
             long size = 0;
-            for (Page<K, V> page : pages) {
-                size = page.size();
+            for (Page<K, V> page : pages()) {
+                size += page.size();
             }
             return size;
         }
 
         public synchronized  void clear() {
-            for (Page<K, V> page : pages) {
-                page.clear();
+            lockAll();
+            try {
+                for (Page<K, V> page : pages()) {
+                    page.clear();
+                }
+            } finally {
+                unlockAll();
+            }
+        }
+
+        /**
+         * Keys are looked up by their encoding, so a store must be opened with the key converter it was written
+         * with. The compact encoding is the exception: it also reads keys written with Java serialization.
+         *
+         * @param recorded class of the converter the keys were written with, null for a new store
+         */
+        private void checkKeyConverter(String recorded) {
+            String current = cfg.getKeyConverter().getClass().getName();
+            if (recorded == null || recorded.equals(current)) {
+                return;
+            }
+            if (recorded.equals(LEGACY_KEY_CONVERTER) && cfg.getKeyConverter() instanceof CompactObjectConverter) {
+                return;
+            }
+            throw new IllegalStateException(String.format("The keys of %s are encoded with %s, it cannot be opened with %s",
+                    cfg.getDataDir(), recorded, current));
+        }
+
+        private Properties loadMeta() {
+            File file = new File(cfg.getDataDir(), META_FILE);
+            if (!file.exists()) {
+                return null;
+            }
+            try {
+                InputStream in = new FileInputStream(file);
+                try {
+                    Properties meta = new Properties();
+                    meta.load(in);
+                    return meta;
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to read " + file, e);
+            }
+        }
+
+        private void saveMeta() {
+            Properties meta = new Properties();
+            meta.setProperty("generation", String.valueOf(layout.generation));
+            meta.setProperty("pageCount", String.valueOf(layout.pages.size()));
+            meta.setProperty("keyConverter", cfg.getKeyConverter().getClass().getName());
+            Layout moving = target;
+            if (moving != null) {
+                meta.setProperty("targetGeneration", String.valueOf(moving.generation));
+                meta.setProperty("targetPageCount", String.valueOf(moving.pages.size()));
+            }
+            File tmp = new File(cfg.getDataDir(), META_FILE + ".tmp");
+            File file = new File(cfg.getDataDir(), META_FILE);
+            try {
+                OutputStream out = new FileOutputStream(tmp);
+                try {
+                    meta.store(out, "DiskBackedMap page layout");
+                } finally {
+                    out.close();
+                }
+                if ((file.exists() && !file.delete()) || !tmp.renameTo(file)) {
+                    throw new IOException("Unable to rename " + tmp + " to " + file);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to write " + file, e);
+            }
+        }
+
+        /**
+         * One generation of pages. Generation 0 lives directly in the data directory, later ones created by
+         * repartitioning in a <code>gen-N</code> sub directory.
+         */
+        private class Layout {
+            private final int generation;
+            private final File dir;
+            private final List<Page<K, V>> pages;
+
+            private Layout(int generation, int pageCount) {
+                this.generation = generation;
+                this.dir = generation == 0 ? cfg.getDataDir() : new File(cfg.getDataDir(), "gen-" + generation);
+                if (!dir.exists() && !dir.mkdirs()) {
+                    throw new RuntimeException("Unable to create " + dir);
+                }
+                this.pages = new ArrayList<Page<K, V>>(pageCount);
+                for (int i = 0; i < pageCount; i++) {
+                    Configuration config = new Configuration(cfg);
+                    config.setDataDir(dir);
+                    config.setNumber(i);
+                    //Each page caches its own values, a cache shared by the pages of both layouts of a repartition
+                    //would answer for a page a key that is only stored in the other one
+                    pages.add(new Page<K, V>(config, new ValueCache<K>(cfg.getCacheSize() / pageCount)));
+                }
+            }
+
+            private Page<K, V> findPage(K key) {
+                return findPage(key.hashCode());
+            }
+
+            private Page<K, V> findPage(int hash) {
+                int idx = hash % pages.size();
+                return pages.get(Math.abs(idx));
             }
         }
     }
-}
\ No newline at end of file
+}
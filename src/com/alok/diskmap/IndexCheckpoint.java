@@ -0,0 +1,190 @@
+/*
+ * Copyright 2009 Alok Singh
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.alok.diskmap;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Snapshot of a page index written next to the data file (<code>N.idx</code>).
+ * <p/>
+ * Layout: magic, version, the data file offset covered by the snapshot, the bytes of live records in the covered
+ * region, whether some of its keys are Java serialized, the entry count, one (hash, {@link IndexEntry}) pair per
+ * entry, then the CRC32 of everything before it. Records at or after the covered offset are not part of the
+ * snapshot and have to be replayed from the data file. The data file is append only, so replaying the records
+ * after the covered offset also replays every overwrite and delete (tombstone) of the entries in the snapshot.
+ * <p/>
+ * A new snapshot is written to a temporary file, synced, then atomically renamed over the previous one, so a
+ * crash leaves either of the two. A snapshot that is torn anyway fails the checksum and is ignored.
+ */
+public class IndexCheckpoint {
+    private static final Logger logger = Logger.getLogger(IndexCheckpoint.class.getName());
+    private static final int MAGIC = 0x44424D49;
+    private static final int VERSION = 7;
+    //magic, version, offset, live bytes, java keys, count
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 1 + 4;
+    private static final int ENTRY_SIZE = 4 + 8;
+    private static final int TRAILER_SIZE = 8;
+
+    private final Configuration cfg;
+    private long liveBytes;
+    private boolean javaKeys;
+
+    public IndexCheckpoint(Configuration cfg) {
+        this.cfg = cfg;
+    }
+
+    /**
+     * Loads the checkpoint into <code>layout</code>.
+     *
+     * @return the data file offset from which records must be replayed, 0 if there is no usable checkpoint
+     *         (<code>layout</code> may then hold a partial load and has to be discarded).
+     */
+    public long load(OffHeapIndex layout, long dataLength) {
+        File file = file();
+        if (!file.exists()) {
+            return 0;
+        }
+        DataInputStream in = null;
+        try {
+            //Checksums exactly the bytes read, the trailer is read after the checksum is taken
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file), 1024 * 1024), new CRC32());
+            in = new DataInputStream(checked);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                logger.log(Level.WARNING, String.format("%s is not a valid checkpoint, ignoring it", file));
+                return 0;
+            }
+            long offset = in.readLong();
+            if (offset > dataLength) {
+                logger.log(Level.WARNING, String.format("%s covers %d bytes but the data file has only %d, ignoring it", file, offset, dataLength));
+                return 0;
+            }
+            long live = in.readLong();
+            boolean java = in.readBoolean();
+            int count = in.readInt();
+            if (count < 0 || HEADER_SIZE + (long) count * ENTRY_SIZE + TRAILER_SIZE != file.length()) {
+                logger.log(Level.WARNING, String.format("%s has %d entries but %d bytes, ignoring it", file, count, file.length()));
+                return 0;
+            }
+            layout.reserve(count);
+            for (int i = 0; i < count; i++) {
+                layout.insert(in.readInt(), in.readLong());
+            }
+            long crc = checked.getChecksum().getValue();
+            if (in.readLong() != crc) {
+                logger.log(Level.WARNING, String.format("%s does not match its checksum, ignoring it", file));
+                return 0;
+            }
+            this.liveBytes = live;
+            this.javaKeys = java;
+            return offset;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, String.format("Unable to read checkpoint %s, ignoring it", file), e);
+            return 0;
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Bytes of live records in the region covered by the last loaded checkpoint.
+     */
+    public long liveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * Whether some keys in the region covered by the last loaded checkpoint are Java serialized.
+     */
+    public boolean javaKeys() {
+        return javaKeys;
+    }
+
+    /**
+     * Replaces the checkpoint with a snapshot of <code>layout</code> covering the data file up to <code>offset</code>.
+     * The caller must make sure the layout is not modified while it is being written.
+     *
+     * @param flags bits of the indexed locations that are not part of the file offset, they are not written
+     */
+    public synchronized void write(OffHeapIndex layout, long offset, long liveBytes, boolean javaKeys, final long flags) throws IOException {
+        File tmp = new File(cfg.getDataFileName("idx.tmp"));
+        FileOutputStream file = new FileOutputStream(tmp);
+        CheckedOutputStream checked = new CheckedOutputStream(file, new CRC32());
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(checked, 1024 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(offset);
+            out.writeLong(liveBytes);
+            out.writeBoolean(javaKeys);
+            out.writeInt(layout.count());
+            final IOException[] error = new IOException[1];
+            layout.traverse(new OffHeapIndex.Visitor() {
+                public void visit(int hash, long location) {
+                    if (error[0] != null) {
+                        return;
+                    }
+                    try {
+                        out.writeInt(hash);
+                        out.writeLong(location & ~flags);
+                    } catch (IOException e) {
+                        error[0] = e;
+                    }
+                }
+            });
+            if (error[0] != null) {
+                throw error[0];
+            }
+            out.flush();
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            //On disk before it replaces the previous snapshot
+            file.getChannel().force(true);
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file().toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public synchronized void delete() {
+        File file = file();
+        if (file.exists() && !file.delete()) {
+            throw new RuntimeException("Unable to delete checkpoint " + file);
+        }
+    }
+
+    private File file() {
+        return new File(cfg.getDataFileName("idx"));
+    }
+
+    private void close(Closeable c) {
+        if (c == null) {
+            return;
+        }
+        try {
+            c.close();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2009 Alok Singh
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.alok.diskmap;
+
+import java.util.UUID;
+
+/**
+ * Packs what a lookup needs to know about a record into the long stored by the {@link OffHeapIndex}:
+ * <ul>
+ * <li>bits 0-39: file offset of the record, data files are limited to 1TB.</li>
+ * <li>bits 40-53: total length of the record so that it is fetched with one read of the right size, 0 when the
+ * record is too long to fit, it is then read header first.</li>
+ * <li>bits 54-61: fingerprint of the serialized key, tells most colliding keys apart without reading them.</li>
+ * <li>bit 62: reserved for the file bit of {@link Page}.</li>
+ * </ul>
+ */
+public final class IndexEntry {
+    public static final long MAX_OFFSET = (1L << 40) - 1;
+    public static final int MAX_LENGTH = (1 << 14) - 1;
+    private static final int LENGTH_SHIFT = 40;
+    private static final int FINGERPRINT_SHIFT = 54;
+
+    private IndexEntry() {
+    }
+
+    public static long pack(long offset, int length, int fingerprint) {
+        if (offset < 0 || offset > MAX_OFFSET) {
+            throw new IllegalStateException(String.format("Offset %d does not fit in an index entry", offset));
+        }
+        long packedLength = length <= MAX_LENGTH ? length : 0;
+        return offset | (packedLength << LENGTH_SHIFT) | ((long) (fingerprint & 0xFF) << FINGERPRINT_SHIFT);
+    }
+
+    public static long offset(long entry) {
+        return entry & MAX_OFFSET;
+    }
+
+    /**
+     * @return the length of the record, 0 if unknown.
+     */
+    public static int length(long entry) {
+        return (int) (entry >>> LENGTH_SHIFT) & MAX_LENGTH;
+    }
+
+    public static int fingerprint(long entry) {
+        return (int) (entry >>> FINGERPRINT_SHIFT) & 0xFF;
+    }
+
+    /**
+     * 8 bits of FNV-1a over the serialized key, independent from the hash code the index is keyed by.
+     */
+    public static int fingerprint(byte[] key) {
+        int h = 0x811C9DC5;
+        for (byte b : key) {
+            h = (h ^ (b & 0xFF)) * 0x01000193;
+        }
+        return (h ^ (h >>> 8) ^ (h >>> 16) ^ (h >>> 24)) & 0xFF;
+    }
+
+    /**
+     * True for the key types whose equal instances always serialize to the same bytes, only their candidates can
+     * be ruled out on the fingerprint. Other keys, hash based collections for one, may be equal with different
+     * bytes and their candidates are always read.
+     */
+    public static boolean hasCanonicalForm(Object key) {
+        return key instanceof String || key instanceof Integer || key instanceof Long || key instanceof Short
+                || key instanceof Byte || key instanceof Character || key instanceof Boolean
+                || key instanceof Double || key instanceof Float || key instanceof UUID || key instanceof Enum;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2009 Alok Singh
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.alok.diskmap;
+
+import com.alok.diskmap.utils.IntKeyConverter;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Map keyed by ints, such as numeric ids. Keys are stored in 4 bytes with {@link IntKeyConverter} and compared
+ * on those bytes, never decoded on lookups. The map has to be opened as an IntDiskBackedMap every time, opening it
+ * otherwise fails.
+ * <p/>
+ * {@link #get(int)} and {@link #containsKey(int)} do not box the key, the other primitive methods do: they
+ * write a record or complete a future, which allocate anyway.
+ */
+public class IntDiskBackedMap<V extends Serializable> extends PrimitiveDiskBackedMap<Integer, V> {
+    private static final ThreadLocal<IntKey> KEYS = new ThreadLocal<IntKey>() {
+        @Override
+        protected IntKey initialValue() {
+            return new IntKey();
+        }
+    };
+
+    public IntDiskBackedMap(String dataDir) {
+        this(new Configuration().setDataDir(new File(dataDir)));
+    }
+
+    /**
+     * @param config used as is but for the key converter
+     */
+    public IntDiskBackedMap(Configuration config) {
+        super(config, new IntKeyConverter(), Integer.class);
+    }
+
+    public V get(int key) {
+        return get(KEYS.get().set(key));
+    }
+
+    public boolean containsKey(int key) {
+        return containsKey(KEYS.get().set(key));
+    }
+
+    public V put(int key, V value) {
+        return put(Integer.valueOf(key), value);
+    }
+
+    public V remove(int key) {
+        return remove(Integer.valueOf(key));
+    }
+
+    public CompletableFuture<V> getAsync(int key) {
+        return getAsync(Integer.valueOf(key));
+    }
+
+    public CompletableFuture<V> putAsync(int key, V value) {
+        return putAsync(Integer.valueOf(key), value);
+    }
+
+    public CompletableFuture<V> removeAsync(int key) {
+        return removeAsync(Integer.valueOf(key));
+    }
+
+    private static final class IntKey extends PrimitiveKey<Integer> {
+        private int key;
+
+        private IntKey() {
+            super(4);
+        }
+
+        private IntKey set(int key) {
+            this.key = key;
+            this.hash = Integer.hashCode(key);
+            IntKeyConverter.encode(key, bytes);
+            return this;
+        }
+
+        @Override
+        public Integer box() {
+            return Integer.valueOf(key);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2009 Alok Singh
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.alok.diskmap;
+
+import com.alok.diskmap.utils.LongKeyConverter;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Map keyed by longs, such as numeric ids. Keys are stored in 8 bytes with {@link LongKeyConverter} and compared
+ * on those bytes, never decoded on lookups. The map has to be opened as a LongDiskBackedMap every time, opening it
+ * otherwise fails.
+ * <p/>
+ * {@link #get(long)} and {@link #containsKey(long)} do not box the key, the other primitive methods do: they
+ * write a record or complete a future, which allocate anyway.
+ */
+public class LongDiskBackedMap<V extends Serializable> extends PrimitiveDiskBackedMap<Long, V> {
+    private static final ThreadLocal<LongKey> KEYS = new ThreadLocal<LongKey>() {
+        @Override
+        protected LongKey initialValue() {
+            return new LongKey();
+        }
+    };
+
+    public LongDiskBackedMap(String dataDir) {
+        this(new Configuration().setDataDir(new File(dataDir)));
+    }
+
+    /**
+     * @param config used as is but for the key converter
+     */
+    public LongDiskBackedMap(Configuration config) {
+        super(config, new LongKeyConverter(), Long.class);
+    }
+
+    public V get(long key) {
+        return get(KEYS.get().set(key));
+    }
+
+    public boolean containsKey(long key) {
+        return containsKey(KEYS.get().set(key));
+    }
+
+    public V put(long key, V value) {
+        return put(Long.valueOf(key), value);
+    }
+
+    public V remove(long key) {
+        return remove(Long.valueOf(key));
+    }
+
+    public CompletableFuture<V> getAsync(long key) {
+        return getAsync(Long.valueOf(key));
+    }
+
+    public CompletableFuture<V> putAsync(long key, V value) {
+        return putAsync(Long.valueOf(key), value);
+    }
+
+    public CompletableFuture<V> removeAsync(long key) {
+        return removeAsync(Long.valueOf(key));
+    }
+
+    private static final class LongKey extends PrimitiveKey<Long> {
+        private long key;
+
+        private LongKey() {
+            super(8);
+        }
+
+        private LongKey set(long key) {
+            this.key = key;
+            this.hash = Long.hashCode(key);
+            LongKeyConverter.encode(key, bytes);
+            return this;
+        }
+
+        @Override
+        public Long box() {
+            return Long.valueOf(key);
+        }
+    }
+}
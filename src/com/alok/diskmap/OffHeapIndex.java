@@ -0,0 +1,269 @@
+/*
+ * Copyright 2009 Alok Singh
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.alok.diskmap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Open addressing (linear probing) multimap from a 32 bit key hash to record locations, kept in direct
+ * ByteBuffers so the index does not add to the heap or to GC work.
+ * <p/>
+ * Each slot is 12 bytes: the int hash followed by the location + 1, a stored value of 0 marks an empty slot.
+ * Colliding hashes simply occupy consecutive slots, and deletes shift the following entries back instead of
+ * leaving tombstones, so probe sequences stay short. The table is split in segments of at most
+ * {@link #MAX_SEGMENT_SLOTS} slots to stay clear of the 2GB limit of a single buffer.
+ * <p/>
+ * The table doubles once it is {@link #LOAD_FACTOR} full, so it costs between 15 bytes per key, right before a
+ * resize, and 30 bytes per key, right after one, about 22 on average. {@link #reserve} avoids the intermediate
+ * tables of a bulk load but not that range.
+ * <p/>
+ * Not thread safe for writes; concurrent lookups are fine as long as no write is in progress. A lookup that
+ * overlaps a write may return garbage or throw a RuntimeException, which is enough for optimistic readers that
+ * validate afterwards.
+ */
+public class OffHeapIndex {
+    private static final int SLOT_SIZE = 12;
+    private static final int MAX_SEGMENT_SLOTS = 1 << 20;
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final float LOAD_FACTOR = 0.8f;
+
+    private ByteBuffer[] segments;
+    private int segmentShift;
+    private int mask;
+    private int size;
+    private int threshold;
+
+    public OffHeapIndex() {
+        this(1024);
+    }
+
+    public OffHeapIndex(int initialCapacity) {
+        int capacity = 16;
+        while (capacity < initialCapacity && capacity < MAX_CAPACITY) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private OffHeapIndex(OffHeapIndex index) {
+        allocate(index.mask + 1);
+        for (int i = 0; i < segments.length; i++) {
+            ByteBuffer segment = index.segments[i].duplicate();
+            segment.clear();
+            segments[i].put(segment);
+            segments[i].clear();
+        }
+        this.size = index.size;
+    }
+
+    /**
+     * Copy of the index made with bulk copies of the table, much faster than inserting the entries one by one.
+     * Like a lookup, it must not overlap a write.
+     */
+    public OffHeapIndex copy() {
+        return new OffHeapIndex(this);
+    }
+
+    public long[] lookup(int hash) {
+        long[] locations = null;
+        int found = 0;
+        int slot = home(hash);
+        for (int i = 0; i <= mask; i++) {
+            long value = value(slot);
+            if (value == 0) {
+                break;
+            }
+            if (hash(slot) == hash) {
+                if (locations == null) {
+                    locations = new long[1];
+                } else if (found == locations.length) {
+                    long[] temp = new long[found * 2];
+                    System.arraycopy(locations, 0, temp, 0, found);
+                    locations = temp;
+                }
+                locations[found++] = value - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (locations != null && found != locations.length) {
+            long[] temp = new long[found];
+            System.arraycopy(locations, 0, temp, 0, found);
+            locations = temp;
+        }
+        return locations;
+    }
+
+    public void insert(int hash, long location) {
+        if (size >= threshold) {
+            resize();
+        }
+        int slot = home(hash);
+        while (true) {
+            long value = value(slot);
+            if (value == 0) {
+                set(slot, hash, location + 1);
+                size++;
+                return;
+            }
+            if (value == location + 1 && hash(slot) == hash) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public void delete(int hash, long location) {
+        int slot = find(hash, location);
+        if (slot < 0) {
+            return;
+        }
+        size--;
+        //Shift back the entries that would become unreachable through the emptied slot
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        long value;
+        while ((value = value(next)) != 0) {
+            int nextHash = hash(next);
+            int home = home(nextHash);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                set(hole, nextHash, value);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        set(hole, 0, 0);
+    }
+
+    public int count() {
+        return size;
+    }
+
+    /**
+     * Grows the table once so that <code>additional</code> more entries fit without further resizing.
+     */
+    public void reserve(int additional) {
+        long needed = (long) size + additional;
+        int capacity = mask + 1;
+        while (needed > (long) (capacity * LOAD_FACTOR) && capacity < MAX_CAPACITY) {
+            capacity <<= 1;
+        }
+        if (capacity > mask + 1) {
+            rehash(capacity);
+        }
+    }
+
+    /**
+     * Off-heap bytes held by the table.
+     */
+    public long capacityInBytes() {
+        return (mask + 1L) * SLOT_SIZE;
+    }
+
+    public void traverse(Visitor visitor) {
+        for (int slot = 0; slot <= mask; slot++) {
+            long value = value(slot);
+            if (value != 0) {
+                visitor.visit(hash(slot), value - 1);
+            }
+        }
+    }
+
+    private int find(int hash, long location) {
+        int slot = home(hash);
+        for (int i = 0; i <= mask; i++) {
+            long value = value(slot);
+            if (value == 0) {
+                return -1;
+            }
+            if (value == location + 1 && hash(slot) == hash) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void resize() {
+        int capacity = mask + 1;
+        if (capacity >= MAX_CAPACITY) {
+            throw new IllegalStateException("Index is full: " + size + " entries");
+        }
+        rehash(capacity << 1);
+    }
+
+    private void rehash(int capacity) {
+        ByteBuffer[] oldSegments = segments;
+        int oldShift = segmentShift;
+        int oldCapacity = mask + 1;
+        allocate(capacity);
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            ByteBuffer segment = oldSegments[slot >>> oldShift];
+            int offset = (slot & ((1 << oldShift) - 1)) * SLOT_SIZE;
+            long value = segment.getLong(offset + 4);
+            if (value != 0) {
+                insert(segment.getInt(offset), value - 1);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        int segmentSlots = Math.min(capacity, MAX_SEGMENT_SLOTS);
+        ByteBuffer[] buffers = new ByteBuffer[capacity / segmentSlots];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.allocateDirect(segmentSlots * SLOT_SIZE).order(ByteOrder.nativeOrder());
+        }
+        this.segments = buffers;
+        this.segmentShift = Integer.numberOfTrailingZeros(segmentSlots);
+        this.mask = capacity - 1;
+        this.threshold = (int) (capacity * LOAD_FACTOR);
+        this.size = 0;
+    }
+
+    private int home(int hash) {
+        //murmur3 finalizer, hashCode() implementations are often poorly distributed in the low bits
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash & mask;
+    }
+
+    private int hash(int slot) {
+        return segments[slot >>> segmentShift].getInt(offset(slot));
+    }
+
+    private long value(int slot) {
+        return segments[slot >>> segmentShift].getLong(offset(slot) + 4);
+    }
+
+    private void set(int slot, int hash, long value) {
+        ByteBuffer segment = segments[slot >>> segmentShift];
+        int offset = offset(slot);
+        segment.putInt(offset, hash);
+        segment.putLong(offset + 4, value);
+    }
+
+    private int offset(int slot) {
+        return (slot & ((1 << segmentShift) - 1)) * SLOT_SIZE;
+    }
+
+    public interface Visitor {
+        void visit(int hash, long location);
+    }
+}
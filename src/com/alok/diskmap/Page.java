@@ -17,26 +17,101 @@
 package com.alok.diskmap;
 
 import com.alok.diskmap.io.BlockingDiskIO;
+import com.alok.diskmap.io.CorruptRecordException;
 import com.alok.diskmap.io.DiskIO;
+import com.alok.diskmap.io.MappedDiskIO;
 import com.alok.diskmap.io.NonBlockingDiskIO;
+import com.alok.diskmap.io.PositionalDiskIO;
+import com.alok.diskmap.utils.CanonicalConverter;
+import com.alok.diskmap.utils.CompactObjectConverter;
+import com.alok.diskmap.utils.ObjectConverter;
 
 import java.io.*;
+import java.lang.ref.Cleaner;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * One data file and its index.
+ * <p/>
+ * Locking, always taken in this order:
+ * <ul>
+ * <li><code>fileLock</code> is shared by every operation and only taken exclusively by clear, close and the end
+ * of a compaction, which replace the file or the index.</li>
+ * <li><code>stripes</code>, keyed by hash, serialize writers of the same key from the lookup of the previous
+ * record to the index update, so writers of other keys do their read-back concurrently. Bulk writes and
+ * compaction batches take all of them.</li>
+ * <li><code>appendLock</code> serializes the appends to the data file together with the matching index change,
+ * so a checkpoint snapshot or a compaction batch taken under it never sees a record that is written but not
+ * indexed.</li>
+ * <li><code>indexLock</code> guards the index itself. Lookups are optimistic and only fall back to the read
+ * lock when they overlapped a change, so gets do not wait for writers of other keys.</li>
+ * </ul>
+ * The data file is append only: a record is never modified once written, an overwrite appends the new version
+ * and a remove appends a {@link Record#TOMBSTONE}, the previous version is only dropped from the index. Readers
+ * therefore need no lock between reading a location from the index and reading the record.
+ * <p/>
+ * Compaction copies the live records to <code>N.cmp</code> while the page stays in use, writes go to the new
+ * file as soon as it exists. Indexed locations carry {@link #FILE_BIT} to tell which of the two files a record
+ * is in; its meaning flips each time a compacted file replaces the data file, so the index is not rewritten.
+ * The rest of an indexed location is an {@link IndexEntry}: the offset, length and key fingerprint of the record.
+ */
 public class Page<K extends Serializable, V extends Serializable> implements Closeable {
     private static final Logger logger = Logger.getLogger(Page.class.getName());
     private static final boolean DEBUG = false;
-    private RBTree layout;
+    private static final int STRIPES = 64;
+    private static final long FILE_BIT = 1L << 62;
+    private static final int COPY_BATCH_SIZE = 1024 * 1024;
+    //Ranges of a file smaller than this are not split any further for parallel scans
+    private static final long MIN_SPLIT_SIZE = 4 * 1024 * 1024;
+    //Releases the pins of the scans dropped without being closed
+    private static final Cleaner PINS = Cleaner.create();
+    private volatile OffHeapIndex layout;
     private final Configuration cfg;
-    private DiskIO io;
-    private ConversionUtils cUtils = ConversionUtils.instance;
+    private volatile DiskIO io;
+    //File being compacted into, null unless a compaction is in progress
+    private volatile DiskIO next;
+    //Value of FILE_BIT in the locations of records in io, the records in next have the other one
+    private volatile long dataBit;
+    //Bytes of the records the index points to, only changed under appendLock
+    private volatile long liveBytes;
+    //Whether some indexed keys are Java serialized, in any file or in next only, changed under appendLock
+    private volatile boolean javaKeys;
+    private boolean nextJavaKeys;
+    private final ObjectConverter keyConverter;
+    private final ObjectConverter valueConverter;
+    //Keys are equal if and only if their bytes are
+    private final boolean canonicalKeys;
+    private final Compressor compressor;
+    private final ValueCache<K> cache;
+    private final IndexCheckpoint checkpoint;
+    private final AtomicBoolean checkpointing = new AtomicBoolean(false);
+    private volatile long lastCheckpoint;
+    private volatile boolean closed;
+    //Open cursors, compaction is paused while there are any
+    private final AtomicInteger pins = new AtomicInteger();
+    //Incremented when the files are emptied under the cursors
+    private volatile int epoch;
 
-    private ReadWriteLock rwl = new ReentrantReadWriteLock();
+    private final ReadWriteLock fileLock = new ReentrantReadWriteLock();
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final StampedLock indexLock = new StampedLock();
+    private final ReentrantLock compactionLock = new ReentrantLock();
+    //Asynchronous loads in flight, guarded by its own monitor
+    private final int[] asyncReads = new int[1];
 
 
     public Page(File dir, int number) {
@@ -44,39 +119,345 @@ public class Page<K extends Serializable, V extends Serializable> implements Clo
     }
 
     public Page(Configuration cfg) {
+        this(cfg, new ValueCache<K>(cfg.getCacheSize()));
+    }
+
+    /**
+     * @param cache cache of the values of this page, must not be shared with other pages.
+     */
+    public Page(Configuration cfg, ValueCache<K> cache) {
         this.cfg = cfg;
-        layout = new RBTree();
-        this.io = this.cfg.getUseNonBlockingReader() ? new NonBlockingDiskIO(cfg) : new BlockingDiskIO(cfg); 
+        this.keyConverter = cfg.getKeyConverter();
+        this.canonicalKeys = keyConverter instanceof CanonicalConverter;
+        this.valueConverter = cfg.getValueConverter();
+        this.compressor = new Compressor(cfg);
+        this.cache = cache;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        layout = new OffHeapIndex();
+        this.io = createDiskIO(cfg, null);
+        this.checkpoint = new IndexCheckpoint(cfg);
         loadData(io);
     }
 
+    private static DiskIO createDiskIO(Configuration cfg, File file) {
+        switch (cfg.getReaderMode()) {
+            case BLOCKING:
+                return new BlockingDiskIO(cfg, file);
+            case MAPPED:
+                return new MappedDiskIO(cfg, file);
+            case POSITIONAL:
+                return new PositionalDiskIO(cfg, file);
+            default:
+                return new NonBlockingDiskIO(cfg, file);
+        }
+    }
+
     public V load(K key) {
-        this.rwl.readLock().lock();
+        fileLock.readLock().lock();
         try{
-            Record record = loadRecord(key);
-            return record == null ? null : cUtils.<V>deserialize(record.getValue());
+            byte[] value = cache.get(key);
+            if (value == null) {
+                byte[] keyBytes = keyConverter.serialize(key);
+                long stamp = cache.stamp(key);
+                Record record = loadRecord(key, keyBytes);
+                if (record == null) {
+                    return null;
+                }
+                value = compressor.value(record);
+                cache.put(key, value, keyBytes.length, stamp);
+            }
+            return valueConverter.<V>deserialize(value);
         }catch(Exception e){
             logger.log(Level.SEVERE, String.format("%s load([%s]) failed", cfg.getDataFileName("dat"), String.valueOf(key)), e);
             throw new RuntimeException(e);
         }finally {
-            this.rwl.readLock().unlock();
+            fileLock.readLock().unlock();
         }
     }
 
-    private Record loadRecord(Serializable key) {
-        long[] locations = layout.lookup(key.hashCode());
+    /**
+     * The value of <code>key</code> as the value converter encoded it, without decoding it.
+     *
+     * @return an array owned by the caller, null if the key is not in the page.
+     */
+    public byte[] loadBytes(K key) {
+        fileLock.readLock().lock();
         try {
-            if (locations != null) {
-                if (locations.length == 1) {
-                    Record record = io.lookup(locations[0]);
-                    return cUtils.deserialize(record.getKey()).equals(key) ? record : null;
-                } else {
-                    for (long location : locations) {
-                        Record r = io.lookup(location);
-                        if (key.equals(cUtils.deserialize(r.getKey()))) {
-                            return r;
+            byte[] value = cache.get(key);
+            if (value != null) {
+                //Shared with the cache
+                return value.clone();
+            }
+            byte[] keyBytes = keyConverter.serialize(key);
+            long stamp = cache.stamp(key);
+            Record record = loadRecord(key, keyBytes);
+            if (record == null) {
+                return null;
+            }
+            value = compressor.value(record);
+            if (!cache.isEnabled()) {
+                return value;
+            }
+            cache.put(key, value, keyBytes.length, stamp);
+            return value.clone();
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, String.format("%s loadBytes([%s]) failed", cfg.getDataFileName("dat"), String.valueOf(key)), e);
+            throw new RuntimeException(e);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * {@link #load} of a key that is not boxed, for key converters that are canonical: the candidate records are
+     * matched on their key bytes as read, and the key is only boxed for the value cache when it is enabled.
+     */
+    public V load(PrimitiveKey<K> key) {
+        fileLock.readLock().lock();
+        try {
+            K boxed = cache.isEnabled() ? key.box() : null;
+            byte[] value = boxed != null ? cache.get(boxed) : null;
+            if (value == null) {
+                long stamp = boxed != null ? cache.stamp(boxed) : 0;
+                Record record = loadRecord(key.hash(), key.bytes());
+                if (record == null) {
+                    return null;
+                }
+                value = compressor.value(record);
+                if (boxed != null) {
+                    cache.put(boxed, value, key.bytes().length, stamp);
+                }
+            }
+            return valueConverter.<V>deserialize(value);
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, String.format("%s load([%s]) failed", cfg.getDataFileName("dat"), Arrays.toString(key.bytes())), e);
+            throw new RuntimeException(e);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * True if the page holds <code>key</code>. The record of the key is found like {@link #load(PrimitiveKey)}
+     * finds it, but its value is neither decompressed nor decoded.
+     */
+    public boolean contains(PrimitiveKey<K> key) {
+        fileLock.readLock().lock();
+        try {
+            return loadRecord(key.hash(), key.bytes()) != null;
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, String.format("%s contains([%s]) failed", cfg.getDataFileName("dat"), Arrays.toString(key.bytes())), e);
+            throw new RuntimeException(e);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Loads the values of the <code>keys</code> held by the page. The candidate records of all the keys are
+     * located under one acquisition of the file lock and read in file order, see {@link DiskIO#lookup(long[], int[])}.
+     *
+     * @return the values found, keys that are not in the page are left out.
+     */
+    public Map<K, V> loadAll(Collection<? extends K> keys) {
+        Map<K, V> values = new HashMap<K, V>();
+        fileLock.readLock().lock();
+        try {
+            List<Candidate<K>> reads = new ArrayList<Candidate<K>>();
+            for (K key : keys) {
+                byte[] value = cache.get(key);
+                if (value != null) {
+                    values.put(key, valueConverter.<V>deserialize(value));
+                    continue;
+                }
+                byte[] keyBytes = keyConverter.serialize(key);
+                long stamp = cache.stamp(key);
+                for (long location : candidates(key, keyBytes)) {
+                    reads.add(new Candidate<K>(key, keyBytes, stamp, location));
+                }
+            }
+            Collections.sort(reads);
+            int from = 0;
+            while (from < reads.size()) {
+                long bit = reads.get(from).location & FILE_BIT;
+                int to = from;
+                while (to < reads.size() && (reads.get(to).location & FILE_BIT) == bit) {
+                    to++;
+                }
+                long[] offsets = new long[to - from];
+                int[] lengths = new int[to - from];
+                for (int i = from; i < to; i++) {
+                    offsets[i - from] = IndexEntry.offset(reads.get(i).location);
+                    lengths[i - from] = IndexEntry.length(reads.get(i).location);
+                }
+                Record[] records = (bit == dataBit ? io : next).lookup(offsets, lengths);
+                for (int i = from; i < to; i++) {
+                    Candidate<K> candidate = reads.get(i);
+                    Record r = records[i - from];
+                    if (!values.containsKey(candidate.key) && matches(r.getKey(), candidate.key, candidate.keyBytes)) {
+                        byte[] value = compressor.value(r);
+                        cache.put(candidate.key, value, candidate.keyBytes.length, candidate.stamp);
+                        values.put(candidate.key, valueConverter.<V>deserialize(value));
+                    }
+                }
+                from = to;
+            }
+            return values;
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, String.format("%s loadAll(%d keys) failed", cfg.getDataFileName("dat"), keys.size()), e);
+            throw new RuntimeException(e);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Indexed location of a key looked up by {@link #loadAll}, ordered by file then by offset.
+     */
+    private static final class Candidate<K> implements Comparable<Candidate<K>> {
+        private final K key;
+        private final byte[] keyBytes;
+        private final long stamp;
+        private final long location;
+
+        private Candidate(K key, byte[] keyBytes, long stamp, long location) {
+            this.key = key;
+            this.keyBytes = keyBytes;
+            this.stamp = stamp;
+            this.location = location;
+        }
+
+        public int compareTo(Candidate<K> other) {
+            return Long.compare(location & (FILE_BIT | IndexEntry.MAX_OFFSET), other.location & (FILE_BIT | IndexEntry.MAX_OFFSET));
+        }
+    }
+
+    /**
+     * Asynchronous {@link #load}: the candidate records are read through {@link DiskIO#lookupAsync}, one after
+     * the other, without holding any lock. With the non blocking reader the future is completed by a reader
+     * thread, and so are the stages depending on it that are not asynchronous.
+     */
+    public CompletableFuture<V> loadAsync(K key) {
+        final CompletableFuture<V> result = new CompletableFuture<V>();
+        final long[] candidates;
+        final byte[] keyBytes;
+        final long stamp;
+        fileLock.readLock().lock();
+        try {
+            byte[] value = cache.get(key);
+            if (value != null) {
+                result.complete(valueConverter.<V>deserialize(value));
+                return result;
+            }
+            keyBytes = keyConverter.serialize(key);
+            stamp = cache.stamp(key);
+            candidates = candidates(key, keyBytes);
+            if (candidates.length == 0) {
+                result.complete(null);
+                return result;
+            }
+            //Released once the last candidate is read, the files are not closed or emptied under the reads
+            beginAsyncRead();
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, String.format("%s loadAsync([%s]) failed", cfg.getDataFileName("dat"), String.valueOf(key)), e);
+            result.completeExceptionally(e);
+            return result;
+        } finally {
+            fileLock.readLock().unlock();
+        }
+        readCandidate(key, keyBytes, stamp, candidates, 0, result);
+        return result;
+    }
+
+    private void readCandidate(final K key, final byte[] keyBytes, final long stamp, final long[] candidates, final int index,
+                               final CompletableFuture<V> result) {
+        CompletableFuture<Record> read;
+        try {
+            long location = candidates[index];
+            DiskIO file = (location & FILE_BIT) == dataBit ? io : next;
+            read = file.lookupAsync(IndexEntry.offset(location), IndexEntry.length(location));
+        } catch (RuntimeException e) {
+            endAsyncRead();
+            result.completeExceptionally(e);
+            return;
+        }
+        read.whenComplete(new BiConsumer<Record, Throwable>() {
+            public void accept(Record r, Throwable error) {
+                V value = null;
+                try {
+                    if (error == null) {
+                        if (!matches(r.getKey(), key, keyBytes)) {
+                            if (index + 1 < candidates.length) {
+                                readCandidate(key, keyBytes, stamp, candidates, index + 1, result);
+                                return;
+                            }
+                        } else {
+                            byte[] bytes = compressor.value(r);
+                            cache.put(key, bytes, keyBytes.length, stamp);
+                            value = valueConverter.<V>deserialize(bytes);
                         }
                     }
+                } catch (RuntimeException e) {
+                    error = e;
+                }
+                endAsyncRead();
+                if (error != null) {
+                    logger.log(Level.SEVERE, String.format("%s loadAsync([%s]) failed", cfg.getDataFileName("dat"), String.valueOf(key)), error);
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(value);
+                }
+            }
+        });
+    }
+
+    private void beginAsyncRead() {
+        synchronized (asyncReads) {
+            asyncReads[0]++;
+        }
+    }
+
+    private void endAsyncRead() {
+        synchronized (asyncReads) {
+            if (--asyncReads[0] == 0) {
+                asyncReads.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits for the asynchronous loads in flight, called under the file write lock before the files are closed or
+     * emptied, no new load can start meanwhile.
+     */
+    private void awaitAsyncReads() {
+        synchronized (asyncReads) {
+            boolean interrupted = false;
+            while (asyncReads[0] > 0) {
+                try {
+                    asyncReads.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @param keyBytes <code>key</code> serialized, candidates are matched on their key bytes and only
+     *                 deserialized when the bytes differ.
+     */
+    private Record loadRecord(Serializable key, byte[] keyBytes) {
+        long[] locations = candidates(key, keyBytes);
+        try {
+            for (long location : locations) {
+                Record r = read(location);
+                if (matches(r.getKey(), key, keyBytes)) {
+                    return r;
                 }
             }
         } catch (Exception e) {
@@ -86,37 +467,264 @@ public class Page<K extends Serializable, V extends Serializable> implements Clo
         return null;
     }
 
+    /**
+     * {@link #loadRecord(Serializable, byte[])} of a key of a canonical key converter, given by its hash code and
+     * its bytes. Candidates are ruled out by their fingerprint, then compared to <code>keyBytes</code> as read.
+     */
+    private Record loadRecord(int hash, byte[] keyBytes) {
+        long[] locations = lookup(hash);
+        if (locations == null) {
+            return null;
+        }
+        int fingerprint = IndexEntry.fingerprint(keyBytes);
+        for (long location : locations) {
+            if (IndexEntry.fingerprint(location) == fingerprint) {
+                Record r = read(location);
+                if (Arrays.equals(keyBytes, r.getKey())) {
+                    return r;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Indexed locations that may hold <code>key</code>, those ruled out by their fingerprint are left out.
+     */
+    private long[] candidates(Serializable key, byte[] keyBytes) {
+        long[] locations = lookup(key.hashCode());
+        if (locations == null) {
+            return new long[0];
+        }
+        if (!canonicalKeys && (!IndexEntry.hasCanonicalForm(key) || (javaKeys && !CompactObjectConverter.isJavaSerialized(keyBytes)))) {
+            //Keys written before the compact encoding have the fingerprint of their Java serialized form
+            return locations;
+        }
+        int fingerprint = IndexEntry.fingerprint(keyBytes);
+        int count = 0;
+        for (long location : locations) {
+            if (IndexEntry.fingerprint(location) == fingerprint) {
+                locations[count++] = location;
+            }
+        }
+        return count == locations.length ? locations : Arrays.copyOf(locations, count);
+    }
+
+    /**
+     * Reads the record at an indexed location, the returned record keeps the whole index entry as its location.
+     */
+    private Record read(long location) {
+        DiskIO file = (location & FILE_BIT) == dataBit ? io : next;
+        Record r = file.lookup(IndexEntry.offset(location), IndexEntry.length(location));
+        r.setLocation(location);
+        return r;
+    }
+
+    /**
+     * Index entry of <code>r</code> written at <code>offset</code>, without the file bit.
+     */
+    private static long entry(long offset, Record r) {
+        return IndexEntry.pack(offset, r.length(), IndexEntry.fingerprint(r.getKey()));
+    }
+
+    private boolean matches(byte[] candidate, Serializable key, byte[] keyBytes) {
+        if (Arrays.equals(keyBytes, candidate)) {
+            return true;
+        }
+        if (canonicalKeys) {
+            return false;
+        }
+        //Equal keys do not always serialize to the same bytes (hash based collections for one)
+        return key.equals(keyConverter.deserialize(candidate));
+    }
+
+    private long[] lookup(int hash) {
+        long stamp = indexLock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                long[] locations = layout.lookup(hash);
+                if (indexLock.validate(stamp)) {
+                    return locations;
+                }
+            } catch (RuntimeException e) {
+                //Torn read of a table being resized, retry under the lock
+            }
+        }
+        stamp = indexLock.readLock();
+        try {
+            return layout.lookup(hash);
+        } finally {
+            indexLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * File new records go to, must be called under <code>appendLock</code>.
+     */
+    private DiskIO appendTarget() {
+        DiskIO compacted = next;
+        return compacted != null ? compacted : io;
+    }
+
+    private long fileBit(DiskIO file) {
+        return file == io ? dataBit : dataBit ^ FILE_BIT;
+    }
+
     public V save(K key, V value) {
-        rwl.writeLock().lock();
-        log(Level.INFO, "[%s] save([%s], [%s]) started", cfg.getDataFileName("dat"), key, value);
+        byte[] vBuffer;
+        try {
+            vBuffer = valueConverter.serialize(value);
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, String.format("[%s] save([%s], [%s]) failed", cfg.getDataFileName("dat"), String.valueOf(key), String.valueOf(value)), e);
+            throw new RuntimeException(e);
+        }
+        saveBytes(key, vBuffer);
+        return valueConverter.<V>deserialize(vBuffer);
+    }
+
+    /**
+     * Stores <code>value</code>, already encoded the way the value converter encodes values, as the value of
+     * <code>key</code>. The array is written as is and must not be modified until the call returns.
+     */
+    public void saveBytes(K key, byte[] value) {
+        long sequence = -1;
+        DiskIO target = null;
+        byte[] kBuffer;
+        try {
+            kBuffer = keyConverter.serialize(key);
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, String.format("[%s] save([%s]) failed", cfg.getDataFileName("dat"), String.valueOf(key)), e);
+            throw new RuntimeException(e);
+        }
+        Record r = new Record(kBuffer, value, Record.ACTIVE, key.hashCode(), -1);
+        compressor.compress(r);
+        ReentrantLock stripe = stripe(key.hashCode());
+        fileLock.readLock().lock();
+        stripe.lock();
+        log(Level.INFO, "[%s] save([%s], %s bytes) started", cfg.getDataFileName("dat"), key, value.length);
         try {
-            byte[] kBuffer = cUtils.serialize(key);
-            byte[] vBuffer = cUtils.serialize(value);
-            Record r = new Record(kBuffer, vBuffer, Record.ACTIVE, key.hashCode(), -1);
-            long location = io.write(r);
             //Check to see if a old record exists
-            Record oldRecord = loadRecord(key);
-            if(oldRecord != null){
-                layout.delete(oldRecord.getHash(), oldRecord.getLocation());
-            }
-            updateLayout(r, location);
-            r.setLocation(location);
-            if(oldRecord != null){
-                oldRecord.setFlag(Record.DELETED);
-                io.update(oldRecord, r);
-            }else{
-                io.update(r);
+            Record oldRecord = loadRecord(key, kBuffer);
+            appendLock.lock();
+            try {
+                target = appendTarget();
+                long location = entry(target.write(r), r) | fileBit(target);
+                r.setLocation(location);
+                noteKey(r, target);
+                long stamp = indexLock.writeLock();
+                try {
+                    if (oldRecord != null) {
+                        layout.delete(oldRecord.getHash(), oldRecord.getLocation());
+                    }
+                    updateLayout(r, location);
+                } finally {
+                    indexLock.unlockWrite(stamp);
+                }
+                cache.invalidate(key);
+                liveBytes += r.length() - (oldRecord != null ? oldRecord.length() : 0);
+                sequence = target.sequence();
+            } finally {
+                appendLock.unlock();
             }
-            log(Level.INFO, "[%s] save([%s], [%s]) complete. Record[%s]", cfg.getDataFileName("dat"), key, value, r);
-            return (V) cUtils.deserialize(vBuffer);
+            log(Level.INFO, "[%s] save([%s], %s bytes) complete. Record[%s]", cfg.getDataFileName("dat"), key, value.length, r);
         } catch (Exception e) {
-            logger.log(Level.SEVERE, String.format("[%s] save([%s], [%s]) failed", cfg.getDataFileName("dat"), String.valueOf(key), String.valueOf(value)), e);
+            logger.log(Level.SEVERE, String.format("[%s] save([%s]) failed", cfg.getDataFileName("dat"), String.valueOf(key)), e);
             throw new RuntimeException(e);
         }finally {
-            rwl.writeLock().unlock();
+            stripe.unlock();
+            fileLock.readLock().unlock();
+            if (sequence >= 0) {
+                target.sync(sequence);
+            }
         }
     }
 
+    /**
+     * Bulk version of {@link #save}: the entries are serialized before the page is locked, then appended with
+     * one sequential write and indexed in a single pass. Keys already in the page are replaced unless
+     * <code>absent</code> is set, in which case the caller guarantees none of the keys is stored yet and the
+     * lookups for previous records are skipped.
+     */
+    public void saveAll(Map<K, V> entries, boolean absent) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        Record[] records = new Record[entries.size()];
+        List<K> keys = new ArrayList<K>(entries.size());
+        int i = 0;
+        try {
+            for (Map.Entry<K, V> entry : entries.entrySet()) {
+                K key = entry.getKey();
+                keys.add(key);
+                records[i] = new Record(keyConverter.serialize(key), valueConverter.serialize(entry.getValue()), Record.ACTIVE, key.hashCode(), -1);
+                compressor.compress(records[i++]);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        long sequence = -1;
+        DiskIO target = null;
+        fileLock.readLock().lock();
+        for (ReentrantLock stripe : stripes) {
+            stripe.lock();
+        }
+        try {
+            List<Record> oldRecords = new ArrayList<Record>();
+            if (!absent) {
+                for (i = 0; i < records.length; i++) {
+                    Record oldRecord = loadRecord(keys.get(i), records[i].getKey());
+                    if (oldRecord != null) {
+                        oldRecords.add(oldRecord);
+                    }
+                }
+            }
+            appendLock.lock();
+            try {
+                target = appendTarget();
+                long[] locations = target.write(records);
+                long bit = fileBit(target);
+                long live = liveBytes;
+                long stamp = indexLock.writeLock();
+                try {
+                    for (Record oldRecord : oldRecords) {
+                        layout.delete(oldRecord.getHash(), oldRecord.getLocation());
+                        live -= oldRecord.length();
+                    }
+                    layout.reserve(records.length);
+                    for (i = 0; i < records.length; i++) {
+                        layout.insert(records[i].getHash(), entry(locations[i], records[i]) | bit);
+                        live += records[i].length();
+                        noteKey(records[i], target);
+                    }
+                } finally {
+                    indexLock.unlockWrite(stamp);
+                }
+                for (K key : keys) {
+                    cache.invalidate(key);
+                }
+                liveBytes = live;
+                sequence = target.sequence();
+            } finally {
+                appendLock.unlock();
+            }
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, String.format("[%s] saveAll(%d entries) failed", cfg.getDataFileName("dat"), records.length), e);
+            throw new RuntimeException(e);
+        } finally {
+            for (int s = STRIPES - 1; s >= 0; s--) {
+                stripes[s].unlock();
+            }
+            fileLock.readLock().unlock();
+            if (sequence >= 0) {
+                target.sync(sequence);
+            }
+        }
+    }
+
+    private ReentrantLock stripe(int hash) {
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
     private void log(Level level, String msg, Object...args) {
         if(logger.isLoggable(level)){
            String[] sArgs = new String[args.length];
@@ -134,189 +742,823 @@ public class Page<K extends Serializable, V extends Serializable> implements Clo
     }
 
     public void remove(K key) {
-        rwl.writeLock().lock();
+        long sequence = -1;
+        DiskIO target = null;
+        ReentrantLock stripe = stripe(key.hashCode());
+        fileLock.readLock().lock();
+        stripe.lock();
         try{
-        Record oldRecord = loadRecord(key);
+        byte[] kBuffer = keyConverter.serialize(key);
+        Record oldRecord = loadRecord(key, kBuffer);
         if(oldRecord != null){
-            layout.delete(oldRecord.getHash(), oldRecord.getLocation());
-            oldRecord.setFlag(Record.DELETED);
-            io.update(oldRecord);
+            appendLock.lock();
+            try {
+                target = appendTarget();
+                target.write(new Record(kBuffer, new byte[0], Record.TOMBSTONE, oldRecord.getHash(), -1));
+                long stamp = indexLock.writeLock();
+                try {
+                    layout.delete(oldRecord.getHash(), oldRecord.getLocation());
+                } finally {
+                    indexLock.unlockWrite(stamp);
+                }
+                cache.invalidate(key);
+                liveBytes -= oldRecord.length();
+                sequence = target.sequence();
+            } finally {
+                appendLock.unlock();
+            }
         }
         }catch(Exception e){
             logger.log(Level.SEVERE, String.format("[%s] remove([%s]) failed", cfg.getDataFileName("dat"), String.valueOf(key)), e);
         }finally {
-            rwl.writeLock().unlock();
+            stripe.unlock();
+            fileLock.readLock().unlock();
+        }
+        if (sequence >= 0) {
+            target.sync(sequence);
         }
     }
 
 
-    private List<Record> lookup(long[] locations) throws IOException {
-        List<Record> records = new ArrayList<Record>(locations.length);
-        for (Long location : locations) {
-            Record r = io.lookup(location);
-            records.add(r);
+    private void updateLayout(Record r, long location) {
+        layout.insert(r.getHash(), location);
+    }
+
+    /**
+     * Notes the encoding of the key of <code>r</code>, indexed in <code>file</code>, see {@link #candidates}.
+     */
+    private void noteKey(Record r, DiskIO file) {
+        if (CompactObjectConverter.isJavaSerialized(r.getKey())) {
+            javaKeys = true;
+            if (file == next) {
+                nextJavaKeys = true;
+            }
         }
-        return records;
     }
 
-    private void updateLayout(Record r, long location) {
-        layout.insert(r.getHash(), location);
+    /**
+     * Opens a {@link Cursor} over the entries of the page.
+     */
+    public Cursor iterator() {
+        return new Cursor(range());
     }
 
-    public Iterator<Map.Entry<K, V>> iterator() {
-        return new Iterator<Map.Entry<K, V>>() {
-            private Node current = layout.root;
-            private List<Record> records = new ArrayList<Record>();
+    /**
+     * Spliterator over the entries of the page, read like a {@link Cursor}. It splits in the files of the page,
+     * then in ranges of offsets starting at records the index points to, so the ranges are scanned in parallel.
+     * The counts it reports are estimates made from the share of the file each range covers.
+     */
+    public Spliterator<Map.Entry<K, V>> spliterator() {
+        return new Split(range(), keyCount());
+    }
 
-            public boolean hasNext() {
-                loadNext();
-                return records.size() > 0;
+    /**
+     * The whole page, up to the end the files have now, pinned until the cursors reading it are done.
+     */
+    private Range range() {
+        fileLock.readLock().lock();
+        appendLock.lock();
+        try {
+            DiskIO compacted = next;
+            DiskIO[] files = compacted == null ? new DiskIO[]{io} : new DiskIO[]{io, compacted};
+            long[] bits = new long[files.length];
+            long[] ends = new long[files.length];
+            for (int i = 0; i < files.length; i++) {
+                bits[i] = fileBit(files[i]);
+                //Everything before the current size is written and indexed
+                ends[i] = files[i].size();
             }
+            return new Range(new Pin(pins), epoch, files, bits, new long[files.length], ends);
+        } finally {
+            appendLock.unlock();
+            fileLock.readLock().unlock();
+        }
+    }
 
-            public Entry<K, V> next() {
-                try {
-                    final K key = cUtils.<K>deserialize(records.get(0).getKey());
-                    final V value = cUtils.<V>deserialize(records.get(0).getValue());
-                    records.remove(0);
-                    return new Entry<K, V>() {
-                        public K getKey() {
-                            return key;
-                        }
+    /**
+     * Holds off compaction, which would move records behind the back of a scan, until released by each of its
+     * holders. A pin that is dropped without being released is released once garbage collected, as a last resort.
+     */
+    private static final class Pin {
+        private final AtomicInteger holders = new AtomicInteger(1);
+        private final Cleaner.Cleanable unpin;
 
-                        public V getValue() {
-                            return value;
-                        }
+        private Pin(AtomicInteger pins) {
+            pins.incrementAndGet();
+            this.unpin = PINS.register(this, new Unpin(pins));
+        }
 
-                        public V setValue(V value) {
-                            throw new UnsupportedOperationException("Not supported yet.");
-                        }
-                    };
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
+        private void share() {
+            holders.incrementAndGet();
+        }
+
+        private void release() {
+            if (holders.decrementAndGet() == 0) {
+                //Runs once, whether released here or by the cleaner
+                unpin.clean();
             }
+        }
+    }
+
+    /**
+     * Must not refer to its {@link Pin}, which would then never be garbage collected.
+     */
+    private static final class Unpin implements Runnable {
+        private final AtomicInteger pins;
+
+        private Unpin(AtomicInteger pins) {
+            this.pins = pins;
+        }
 
-            public void remove() {
-                throw new UnsupportedOperationException("Not supported yet.");
+        public void run() {
+            pins.decrementAndGet();
+        }
+    }
+
+    /**
+     * Part of the files of a page to scan: from <code>starts[i]</code> to <code>ends[i]</code> in
+     * <code>files[i]</code>, whose records have the file bit <code>bits[i]</code>.
+     */
+    private static final class Range {
+        private final Pin pin;
+        private final int openedEpoch;
+        private final DiskIO[] files;
+        private final long[] bits;
+        private final long[] starts;
+        private final long[] ends;
+
+        private Range(Pin pin, int openedEpoch, DiskIO[] files, long[] bits, long[] starts, long[] ends) {
+            this.pin = pin;
+            this.openedEpoch = openedEpoch;
+            this.files = files;
+            this.bits = bits;
+            this.starts = starts;
+            this.ends = ends;
+        }
+
+        /**
+         * The files <code>from</code> to <code>to</code> of the range, or the part of a single one between
+         * <code>start</code> and <code>end</code> when they are not negative.
+         */
+        private Range part(int from, int to, long start, long end) {
+            Range part = new Range(pin, openedEpoch, Arrays.copyOfRange(files, from, to), Arrays.copyOfRange(bits, from, to),
+                    Arrays.copyOfRange(starts, from, to), Arrays.copyOfRange(ends, from, to));
+            if (start >= 0) {
+                part.starts[0] = start;
             }
+            if (end >= 0) {
+                part.ends[0] = end;
+            }
+            return part;
+        }
 
-            private void loadNext() {
-                try {
-                    if (records.size() == 0 && current != null) {
-                        if (current.getValues() == null) {
-                            records.add(io.lookup(current.getValue()));
-                        } else {
-                            records.addAll(lookup(current.getValues()));
-                        }
-                        if (current.left != null) {
-                            current = current.left;
-                        } else if (current.right != null) {
-                            current = current.right;
-                        } else {
-                            current = null;
-                        }
+        private long bytes() {
+            long bytes = 0;
+            for (int i = 0; i < files.length; i++) {
+                bytes += ends[i] - starts[i];
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Weakly consistent iterator reading the data file, then the file being compacted into if any, sequentially
+     * with large reads, and returning the records the index still points to. It stops at the end the files had
+     * when it was opened: entries not written while it is open are returned exactly once, entries written in the
+     * meantime may be returned with their old value or be missed.
+     * <p/>
+     * An open cursor holds off compaction of the page, which would move records behind its back. It is closed
+     * when it runs to the end, a cursor that is abandoned before should be closed for compaction to resume
+     * without waiting for it to be garbage collected.
+     */
+    public class Cursor implements Iterator<Map.Entry<K, V>>, Closeable {
+        private final Range range;
+        private int current = -1;
+        private Iterator<Record> records;
+        private Map.Entry<K, V> pending;
+        private boolean done;
+
+        private Cursor(Range range) {
+            this.range = range;
+        }
+
+        public boolean hasNext() {
+            while (pending == null && !done) {
+                if (Page.this.closed || epoch != range.openedEpoch) {
+                    //Closed or cleared under the cursor, the rest of the file is gone
+                    close();
+                    break;
+                }
+                if (records == null || !hasMoreRecords()) {
+                    if (++current == range.files.length) {
+                        close();
+                        break;
                     }
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    records = range.files[current].iterator(range.starts[current], range.ends[current]);
+                    continue;
+                }
+                Record r = records.next();
+                if (r.getFlag() == Record.ACTIVE && isLive(r, range.bits[current])) {
+                    K key = keyConverter.<K>deserialize(r.getKey());
+                    V value = valueConverter.<V>deserialize(compressor.value(r));
+                    pending = new AbstractMap.SimpleImmutableEntry<K, V>(key, value);
+                }
+            }
+            return pending != null;
+        }
+
+        private boolean hasMoreRecords() {
+            try {
+                return records.hasNext();
+            } catch (RuntimeException e) {
+                if (Page.this.closed || epoch != range.openedEpoch) {
+                    return false;
                 }
+                throw e;
+            }
+        }
+
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
             }
+            Map.Entry<K, V> entry = pending;
+            pending = null;
+            return entry;
+        }
 
-        };
+        public void remove() {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        public void close() {
+            if (!done) {
+                done = true;
+                records = null;
+                range.pin.release();
+            }
+        }
+    }
+
+    /**
+     * Releases its share of the pin when it runs to the end or is closed, see {@link Cursor}.
+     */
+    private final class Split implements Spliterator<Map.Entry<K, V>>, Closeable {
+        private Range range;
+        private long count;
+        private Cursor cursor;
+
+        private Split(Range range, long count) {
+            this.range = range;
+            this.count = count;
+        }
+
+        public boolean tryAdvance(Consumer<? super Map.Entry<K, V>> action) {
+            if (cursor == null) {
+                cursor = new Cursor(range);
+            }
+            if (!cursor.hasNext()) {
+                return false;
+            }
+            action.accept(cursor.next());
+            return true;
+        }
+
+        public void forEachRemaining(Consumer<? super Map.Entry<K, V>> action) {
+            if (cursor == null) {
+                cursor = new Cursor(range);
+            }
+            try {
+                while (cursor.hasNext()) {
+                    action.accept(cursor.next());
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        public Spliterator<Map.Entry<K, V>> trySplit() {
+            if (cursor != null) {
+                return null;
+            }
+            Range first;
+            Range rest;
+            if (range.files.length > 1) {
+                first = range.part(0, 1, -1, -1);
+                rest = range.part(1, range.files.length, -1, -1);
+            } else {
+                long start = range.starts[0];
+                long end = range.ends[0];
+                if (end - start < 2 * MIN_SPLIT_SIZE) {
+                    return null;
+                }
+                long boundary = boundary(range.bits[0], start + (end - start) / 2, end);
+                if (boundary < 0) {
+                    return null;
+                }
+                first = range.part(0, 1, -1, boundary);
+                rest = range.part(0, 1, boundary, -1);
+            }
+            long bytes = range.bytes();
+            long restCount = bytes == 0 ? 0 : (long) ((double) count * rest.bytes() / bytes);
+            range.pin.share();
+            range = first;
+            count -= restCount;
+            return new Split(rest, restCount);
+        }
+
+        public long estimateSize() {
+            return count;
+        }
+
+        public int characteristics() {
+            return Spliterator.CONCURRENT | Spliterator.NONNULL;
+        }
+
+        public synchronized void close() {
+            if (cursor == null) {
+                //Never read, an unopened cursor holds the pin without reading anything
+                cursor = new Cursor(range);
+            }
+            cursor.close();
+        }
+    }
+
+    /**
+     * Smallest offset in <code>[from, to)</code> of a record the index points to in the file with the given file
+     * bit, -1 if there is none.
+     */
+    private long boundary(final long bit, final long from, final long to) {
+        final long[] boundary = {Long.MAX_VALUE};
+        long stamp = indexLock.readLock();
+        try {
+            layout.traverse(new OffHeapIndex.Visitor() {
+                public void visit(int hash, long location) {
+                    long offset = IndexEntry.offset(location);
+                    if ((location & FILE_BIT) == bit && offset >= from && offset < to && offset < boundary[0]) {
+                        boundary[0] = offset;
+                    }
+                }
+            });
+        } finally {
+            indexLock.unlockRead(stamp);
+        }
+        return boundary[0] == Long.MAX_VALUE ? -1 : boundary[0];
+    }
+
+    /**
+     * True if the index points to <code>r</code>, read at its offset in the file with the given file bit.
+     */
+    private boolean isLive(Record r, long bit) {
+        long[] locations = lookup(r.getHash());
+        if (locations != null) {
+            for (long location : locations) {
+                if (IndexEntry.offset(location) == r.getLocation() && (location & FILE_BIT) == bit) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     private void loadData(DiskIO io) {
-        rwl.writeLock().lock();
+        fileLock.writeLock().lock();
         try{
             log(Level.INFO, "%s loadData started", cfg.getDataFileName("dat"));
             long time = System.currentTimeMillis();
-            int count = 0;
-            for (Record r : io) {
-                if (r.getFlag() == Record.ACTIVE && r.getLocation() != -1) {
-                    layout.insert(r.getHash(), r.getLocation());
+            long from = checkpoint.load(layout, io.size());
+            if (from == 0) {
+                layout = new OffHeapIndex();
+            }
+            liveBytes = from == 0 ? 0 : checkpoint.liveBytes();
+            javaKeys = from != 0 && checkpoint.javaKeys();
+            int count;
+            try {
+                count = replay(io, from, dataBit);
+            } catch (Exception e) {
+                if (from == 0) {
+                    throw e;
                 }
-                count++;
+                logger.log(Level.WARNING, String.format("%s replay from checkpoint offset %d failed, rebuilding the index from the data file", cfg.getDataFileName("dat"), from), e);
+                layout = new OffHeapIndex();
+                liveBytes = 0;
+                javaKeys = false;
+                checkpoint.delete();
+                count = replay(io, 0, dataBit);
+            }
+            File compacted = new File(cfg.getDataFileName("cmp"));
+            if (compacted.exists()) {
+                //Interrupted compaction, its records are newer than those of the data file
+                next = createDiskIO(cfg, compacted);
+                count += replay(next, 0, dataBit ^ FILE_BIT);
+                logger.log(Level.INFO, String.format("%s has an unfinished compaction, it will be resumed", cfg.getDataFileName("dat")));
             }
-            log(Level.INFO, "%s loadData loadData complete. Items: %s in ms: %s", count, (System.currentTimeMillis() - time),cfg.getDataFileName("dat"));
+            lastCheckpoint = System.currentTimeMillis();
+            log(Level.INFO, "%s loadData complete. Replayed %s items from offset %s in ms: %s", cfg.getDataFileName("dat"), count, from, (System.currentTimeMillis() - time));
         }catch(Exception e){
-            log(Level.SEVERE, String.format("%s loadData failed", cfg.getDataFileName("dat")));
+            //An index missing part of the file would silently lose keys, refuse to open instead
+            throw new RuntimeException(String.format("%s loadData failed", cfg.getDataFileName("dat")), e);
         }finally {
-            rwl.writeLock().unlock();
+            fileLock.writeLock().unlock();
         }
     }
 
-    public void vacuum() throws Exception {
-        rwl.writeLock().lock();
-        try{
-            log(Level.INFO, "%s vaccum/gc started", cfg.getDataFileName("dat"));
-            io.vacuum(new CurrentRecordFilter(layout));
-            log(Level.INFO, "%s vaccum/gc complete", cfg.getDataFileName("dat"));
-        }catch(Exception e){
-            log(Level.SEVERE, String.format("%s vaccum/gc failed", cfg.getDataFileName("dat")));
-        }finally {
-            rwl.writeLock().unlock();
+    /**
+     * Indexes the records of <code>file</code> from <code>from</code> on. A corrupt record, normally the torn
+     * tail of a write interrupted by a crash, ends the replay and is cut off the file with everything after it.
+     */
+    private int replay(DiskIO file, long from, long bit) {
+        int count = 0;
+        try {
+            for (Iterator<Record> records = file.iterator(from); records.hasNext();) {
+                Record r = records.next();
+                if (r.getFlag() == Record.ACTIVE) {
+                    unindex(r);
+                    layout.insert(r.getHash(), entry(r.getLocation(), r) | bit);
+                    liveBytes += r.length();
+                    noteKey(r, file);
+                } else {
+                    //Tombstones, and records flagged as deleted in place by versions that were not append only
+                    unindex(r);
+                }
+                count++;
+            }
+        } catch (CorruptRecordException e) {
+            logger.log(Level.WARNING, String.format("%s, truncating %d bytes", e.getMessage(), file.size() - e.getLocation()));
+            file.truncate(e.getLocation());
         }
+        return count;
     }
 
+    /**
+     * Drops the index entry of the key of <code>r</code>, which has been superseded by <code>r</code>.
+     */
+    private void unindex(Record r) {
+        long[] locations = layout.lookup(r.getHash());
+        if (locations == null) {
+            return;
+        }
+        Serializable key = null;
+        for (long location : locations) {
+            Record candidate = read(location);
+            if (!Arrays.equals(r.getKey(), candidate.getKey())) {
+                if (canonicalKeys) {
+                    continue;
+                }
+                if (key == null) {
+                    key = keyConverter.deserialize(r.getKey());
+                }
+                if (!key.equals(keyConverter.deserialize(candidate.getKey()))) {
+                    continue;
+                }
+            }
+            layout.delete(r.getHash(), location);
+            liveBytes -= candidate.length();
+            return;
+        }
+    }
 
-    public void close() {
-        io.close();
+    /**
+     * Writes a checkpoint of the index if the last one is older than {@link Configuration#getCheckpointInterval()}.
+     * Called by the background thread of the map, it is not worth holding up a writer.
+     */
+    public void checkpointIfDue() {
+        long interval = cfg.getCheckpointInterval();
+        if (interval <= 0 || System.currentTimeMillis() - lastCheckpoint < interval) {
+            return;
+        }
+        if (!checkpointing.compareAndSet(false, true)) {
+            return;
+        }
+        //Holds off a swap, which deletes the checkpoint of the old file, until the snapshot is written
+        fileLock.readLock().lock();
+        try {
+            writeSnapshot();
+        } finally {
+            fileLock.readLock().unlock();
+            checkpointing.set(false);
+        }
     }
-    
-    public long size() {
-        return this.io.size();
+
+    /**
+     * Writes the checkpoint of a copy of the index while the page is in use, the caller holds the file lock.
+     * Writers are only held off while the index is copied, not while it is written out: the records appended
+     * in the meantime are after the covered offset and replayed on load.
+     */
+    private void writeSnapshot() {
+        OffHeapIndex snapshot;
+        long offset;
+        long live;
+        boolean java;
+        appendLock.lock();
+        try {
+            if (closed || next != null) {
+                //The checkpoint only covers the data file, the compacted file is replayed in full
+                return;
+            }
+            snapshot = layout.copy();
+            offset = io.size();
+            live = liveBytes;
+            java = javaKeys;
+        } finally {
+            appendLock.unlock();
+        }
+        writeCheckpoint(snapshot, offset, live, java);
     }
 
-    public int keyCount() {
-        return this.layout.count();
+    /**
+     * Writes the checkpoint of the whole page, nothing else must run.
+     */
+    private void writeCheckpoint() {
+        if (next != null) {
+            //The checkpoint only covers the data file, the compacted file is replayed in full
+            return;
+        }
+        writeCheckpoint(layout, io.size(), liveBytes, javaKeys);
     }
 
-    public void clear() {
-        rwl.writeLock().lock();
-        try{
-            log(Level.INFO, "%s clearing", cfg.getDataFileName("dat"));
-            io.clear();
-            this.layout = new RBTree();
-            log(Level.INFO, "%s cleared", cfg.getDataFileName("dat"));
-        }catch(Exception e){
-            log(Level.SEVERE, String.format("%s clearing failed", cfg.getDataFileName("dat")));
-        }finally {
-            rwl.writeLock().unlock();
+    private void writeCheckpoint(OffHeapIndex snapshot, long offset, long live, boolean java) {
+        try {
+            long time = System.currentTimeMillis();
+            //The records the checkpoint covers must not be lost in a crash that keeps the checkpoint, whatever
+            //the durability of the writes
+            io.force();
+            checkpoint.write(snapshot, offset, live, java, FILE_BIT);
+            log(Level.INFO, "%s checkpoint written in ms: %s", cfg.getDataFileName("dat"), (System.currentTimeMillis() - time));
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, String.format("%s checkpoint failed", cfg.getDataFileName("dat")), e);
         }
+        lastCheckpoint = System.currentTimeMillis();
     }
 
-    private class CurrentRecordFilter implements DiskIO.RecordFilter{
-        private RBTree layout;
+    /**
+     * Compacts the page, see {@link #compact()}.
+     */
+    public void vacuum() throws Exception {
+        compact();
+    }
 
-        public CurrentRecordFilter(RBTree layout){
-            this.layout = layout;
+    /**
+     * True when the dead records (overwritten, removed and tombstones) make up at least
+     * {@link Configuration#getCompactionRatio()} of a data file larger than
+     * {@link Configuration#getCompactionMinSize()}, or when a compaction was interrupted.
+     */
+    public boolean needsCompaction() {
+        if (next != null) {
+            return true;
         }
+        double ratio = cfg.getCompactionRatio();
+        long size = io.size();
+        return ratio > 0 && size > 0 && size >= cfg.getCompactionMinSize() && (size - liveBytes) >= size * ratio;
+    }
 
-        @Override
-        public boolean accept(Record r) {
-            long[] locations = layout.lookup(r.getHash());
-            if (locations == null || locations.length == 0) {
+    /**
+     * Rewrites the data file without its dead records while the page keeps serving reads and writes. New writes
+     * go to the compacted file from the start, live records of the data file are copied over in batches taking
+     * the append lock for one batch at a time, and the compacted file finally replaces the data file with an
+     * atomic rename. A compaction interrupted by close, a crash or an open {@link Cursor} is resumed by the next
+     * one.
+     */
+    public void compact() {
+        compactionLock.lock();
+        try {
+            long time = System.currentTimeMillis();
+            DiskIO source;
+            fileLock.readLock().lock();
+            appendLock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                if (pins.get() > 0) {
+                    logger.log(Level.INFO, String.format("%s compaction postponed, %d scans are open", cfg.getDataFileName("dat"), pins.get()));
+                    return;
+                }
+                if (next == null) {
+                    File compacted = new File(cfg.getDataFileName("cmp"));
+                    if (compacted.exists() && !compacted.delete()) {
+                        throw new RuntimeException("Unable to delete " + compacted);
+                    }
+                    next = createDiskIO(cfg, compacted);
+                    nextJavaKeys = false;
+                }
+                source = io;
+            } finally {
+                appendLock.unlock();
+                fileLock.readLock().unlock();
+            }
+            log(Level.INFO, "%s compaction started", cfg.getDataFileName("dat"));
+            List<Record> batch = new ArrayList<Record>();
+            int bytes = 0;
+            for (Iterator<Record> records = source.iterator(0); records.hasNext();) {
+                Record r = records.next();
+                if (r.getFlag() != Record.ACTIVE) {
+                    continue;
+                }
+                batch.add(r);
+                bytes += r.length();
+                if (bytes >= COPY_BATCH_SIZE) {
+                    if (!copy(source, batch)) {
+                        return;
+                    }
+                    batch.clear();
+                    bytes = 0;
+                }
+            }
+            if (copy(source, batch) && swap(source)) {
+                log(Level.INFO, "%s compaction complete in ms: %s", cfg.getDataFileName("dat"), (System.currentTimeMillis() - time));
+            }
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Moves the records of <code>batch</code> the index still points to from the data file to the compacted one.
+     *
+     * @return false if the compaction has to stop because the page was closed or cleared, or a cursor is open.
+     */
+    private boolean copy(DiskIO source, List<Record> batch) {
+        fileLock.readLock().lock();
+        try {
+            if (closed || io != source || next == null) {
                 return false;
             }
-            for (long location : locations) {
-                if (location == r.getLocation()) {
+            if (batch.isEmpty()) {
+                return true;
+            }
+            //Writers hold their stripe from the lookup of the previous record to the index update, the records
+            //must not move in between
+            for (ReentrantLock stripe : stripes) {
+                stripe.lock();
+            }
+            appendLock.lock();
+            try {
+                if (pins.get() > 0) {
+                    //Paused until the cursors are closed, cursors are opened under appendLock
+                    return false;
+                }
+                //The index only changes under appendLock, it can be read directly
+                List<Record> live = new ArrayList<Record>(batch.size());
+                List<Long> entries = new ArrayList<Long>(batch.size());
+                for (Record r : batch) {
+                    long[] locations = layout.lookup(r.getHash());
+                    if (locations != null) {
+                        for (long location : locations) {
+                            if (IndexEntry.offset(location) == r.getLocation() && (location & FILE_BIT) == dataBit) {
+                                live.add(r);
+                                entries.add(location);
+                                break;
+                            }
+                        }
+                    }
+                }
+                if (live.isEmpty()) {
                     return true;
                 }
+                Record[] records = live.toArray(new Record[live.size()]);
+                //The compacted file may use a more compact layout than the data file
+                long resized = 0;
+                for (Record r : records) {
+                    resized -= r.length();
+                }
+                long[] locations = next.write(records);
+                for (Record r : records) {
+                    resized += r.length();
+                }
+                liveBytes += resized;
+                long bit = fileBit(next);
+                long stamp = indexLock.writeLock();
+                try {
+                    for (int i = 0; i < records.length; i++) {
+                        layout.delete(records[i].getHash(), entries.get(i));
+                        layout.insert(records[i].getHash(), entry(locations[i], records[i]) | bit);
+                        noteKey(records[i], next);
+                    }
+                } finally {
+                    indexLock.unlockWrite(stamp);
+                }
+            } finally {
+                appendLock.unlock();
+                for (int s = STRIPES - 1; s >= 0; s--) {
+                    stripes[s].unlock();
+                }
             }
-            return false;
+            return true;
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the data file with the compacted one. Readers and writers are held off only for the rename and
+     * the reopening of the file.
+     */
+    private boolean swap(DiskIO source) {
+        fileLock.writeLock().lock();
+        try {
+            if (closed || io != source || next == null || pins.get() > 0) {
+                return false;
+            }
+            File data = new File(cfg.getDataFileName("dat"));
+            File compacted = new File(cfg.getDataFileName("cmp"));
+            awaitAsyncReads();
+            next.force();
+            next.close();
+            io.close();
+            //The checkpoint describes the old file, it must not outlive it
+            checkpoint.delete();
+            try {
+                Files.move(compacted.toPath(), data.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, String.format("Unable to move %s to %s, the compaction will be retried", compacted, data), e);
+                io = createDiskIO(cfg, null);
+                next = createDiskIO(cfg, compacted);
+                return false;
+            }
+            io = createDiskIO(cfg, null);
+            next = null;
+            dataBit ^= FILE_BIT;
+            javaKeys = nextJavaKeys;
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+        fileLock.readLock().lock();
+        try {
+            if (!closed) {
+                writeSnapshot();
+            }
+        } finally {
+            fileLock.readLock().unlock();
         }
+        return true;
+    }
+
 
-        @Override
-        public void update(Record r, long newLocation) {
-            rwl.writeLock().lock();
-            try{
-                log(Level.INFO, "%s update started", cfg.getDataFileName("dat"));
-                layout.delete(r.getHash(), r.getLocation());
-                layout.insert(r.getHash(), newLocation);
-            }catch(Exception e){
-                log(Level.SEVERE, String.format("%s update failed", cfg.getDataFileName("dat")));
-            }finally {
-                rwl.writeLock().unlock();
+    public void close() {
+        fileLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            awaitAsyncReads();
+            writeCheckpoint();
+            if (next != null) {
+                //Left on disk, the compaction is resumed when the page is opened again
+                next.close();
             }
+            io.close();
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Closes the page and removes its files.
+     */
+    public void delete() {
+        close();
+        new File(cfg.getDataFileName("dat")).delete();
+        new File(cfg.getDataFileName("cmp")).delete();
+        checkpoint.delete();
+    }
+
+    public long size() {
+        DiskIO compacted = next;
+        return this.io.size() + (compacted != null ? compacted.size() : 0);
+    }
+
+    public ValueCache.Stats cacheStats() {
+        return cache.stats();
+    }
+
+    public int keyCount() {
+        return this.layout.count();
+    }
+
+    public void clear() {
+        fileLock.writeLock().lock();
+        try{
+            log(Level.INFO, "%s clearing", cfg.getDataFileName("dat"));
+            awaitAsyncReads();
+            if (next != null) {
+                next.close();
+                next = null;
+                new File(cfg.getDataFileName("cmp")).delete();
+            }
+            checkpoint.delete();
+            io.clear();
+            epoch++;
+            this.layout = new OffHeapIndex();
+            cache.clear();
+            liveBytes = 0;
+            javaKeys = false;
+            log(Level.INFO, "%s cleared", cfg.getDataFileName("dat"));
+        }catch(Exception e){
+            log(Level.SEVERE, String.format("%s clearing failed", cfg.getDataFileName("dat")));
+        }finally {
+            fileLock.writeLock().unlock();
         }
     }
 
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2009 Alok Singh
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.alok.diskmap;
+
+import com.alok.diskmap.utils.CanonicalConverter;
+
+import java.io.Serializable;
+
+/**
+ * Map keyed by a primitive type, see {@link LongDiskBackedMap} and {@link IntDiskBackedMap}. The key converter is
+ * fixed and recorded with the map, keys of other types are never in the map, and the primitive lookups of the
+ * subclasses go through a {@link PrimitiveKey} reused by the calling thread instead of a boxed key.
+ */
+public abstract class PrimitiveDiskBackedMap<K extends Serializable, V extends Serializable> extends DiskBackedMap<K, V> {
+    private final Class<K> keyType;
+
+    /**
+     * @param config used as is but for the key converter
+     */
+    PrimitiveDiskBackedMap(Configuration config, CanonicalConverter keyConverter, Class<K> keyType) {
+        super(new Configuration(config).setKeyConverter(keyConverter));
+        this.keyType = keyType;
+    }
+
+    /**
+     * Null for keys of another type, rather than a ClassCastException.
+     */
+    @Override
+    public V get(Object key) {
+        return keyType.isInstance(key) ? super.get(key) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return keyType.isInstance(key) && super.containsKey(key);
+    }
+
+    @Override
+    public V remove(Object key) {
+        return keyType.isInstance(key) ? super.remove(key) : null;
+    }
+}
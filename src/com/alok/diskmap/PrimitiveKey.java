@@ -0,0 +1,52 @@
+/*
+ * Copyright 2009 Alok Singh
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.alok.diskmap;
+
+import java.io.Serializable;
+
+/**
+ * A key of a fixed width primitive type, encoded the way the canonical key converter of its map encodes it, so
+ * the map can look it up without boxing it. Instances are reused: the map fills one in right before a lookup and
+ * it is only valid until the lookup returns.
+ */
+public abstract class PrimitiveKey<K extends Serializable> {
+    protected final byte[] bytes;
+    protected int hash;
+
+    protected PrimitiveKey(int width) {
+        this.bytes = new byte[width];
+    }
+
+    /**
+     * Same as the hashCode() of the boxed key, it picks the page, the lock stripe and the index slots.
+     */
+    public int hash() {
+        return hash;
+    }
+
+    /**
+     * The key as its key converter serializes it, owned by this instance.
+     */
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    /**
+     * The boxed key, only asked for by the value cache.
+     */
+    public abstract K box();
+}
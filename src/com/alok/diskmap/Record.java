@@ -18,21 +18,58 @@ package com.alok.diskmap;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.nio.channels.FileChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-
+import java.util.zip.CRC32C;
+
+/**
+ * A key/value pair as stored in a data file, in one of three layouts:
+ * <ul>
+ * <li>{@link #V0}: flag, hash, location, key size and value size as fixed size fields, each followed by a zero
+ * byte, then the key and the value, also followed by a zero byte. Used by data files without a header.</li>
+ * <li>{@link #V1}: the V0 layout with the {@link #checksum()} stored in place of the location.</li>
+ * <li>{@link #V2}: a flag byte, the hash, the key and value sizes as varints, the key, the value and the
+ * checksum, without padding nor location.</li>
+ * </ul>
+ * The location of a record is its offset in the file whatever the layout, readers set it.
+ */
 public class Record implements Comparable<Record>{
-    private static final ConversionUtils util = new ConversionUtils();
+    private static final ThreadLocal<Codec> CODEC = new ThreadLocal<Codec>() {
+        @Override
+        protected Codec initialValue() {
+            return new Codec();
+        }
+    };
     private static final Logger logger = Logger.getLogger(Record.class.getName());
 
     private final boolean DEBUG = false;
     public static final int ACTIVE = 1;
     public static final int DELETED = 2;
     public static final int EMPTY = 4;
+    /** Appended by a remove, carries the key of the removed record and no value */
+    public static final int TOMBSTONE = 8;
+    /** Added to the stored flag of records whose value is compressed, {@link #getFlag()} does not include it */
+    public static final int COMPRESSED = 16;
+    /** Header size of the V0 and V1 layouts */
+    public static final int HEADER_SIZE = 29;
+    public static final int V0 = 0;
+    public static final int V1 = 1;
+    public static final int V2 = 2;
+    /** Flag, hash and two one byte varints */
+    public static final int V2_MIN_HEADER_SIZE = 7;
+    /** Flag, hash and two five byte varints */
+    public static final int V2_MAX_HEADER_SIZE = 15;
+    private static final int CHECKSUM_SIZE = 4;
+    /** Bytes read ahead by positional reads, enough for the whole of most records */
+    private static final int READ_AHEAD = 512;
+    private static final int ENCODE_BUFFER_SIZE = 4096;
+    /** Encode buffers grown past this size are not kept for the next record */
+    private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
 
     private int flag;
     private int hash;
@@ -40,7 +77,10 @@ public class Record implements Comparable<Record>{
     private byte[] key;
     private int valueSize;
     private byte[] value;
+    private boolean compressed;
     private long location = -1;
+    private long storedChecksum = -1;
+    private int format = V2;
 
     public Record() {
     }
@@ -57,6 +97,7 @@ public class Record implements Comparable<Record>{
 
     public Record(Record r, long newLocation) {
         this(r.getKey(), r.getValue(), r.getFlag(), r.getHash(), newLocation);
+        this.compressed = r.isCompressed();
     }
 
     public void setFlag(int flag) {
@@ -64,107 +105,270 @@ public class Record implements Comparable<Record>{
     }
 
     public void write(DataOutput index) throws IOException {
-        writeIndex(index);
-        writeDate(index);
+        write(index, V0);
+    }
+
+    /**
+     * Writes the record in the given layout, which {@link #length()} then refers to, with a single write.
+     */
+    public void write(DataOutput index, int format) throws IOException {
+        ByteBuffer encoded = encode(format, location);
+        index.write(encoded.array(), 0, encoded.limit());
     }
 
+    /**
+     * Encodes the record in the given layout, which {@link #length()} then refers to.
+     *
+     * @param location stored by the {@link #V0} layout only.
+     * @return a buffer of the calling thread holding the record from 0 to its limit, valid until the next
+     *         encode on that thread.
+     */
+    public ByteBuffer encode(int format, long location) {
+        this.format = format;
+        Codec codec = CODEC.get();
+        ByteBuffer buffer = codec.encodeBuffer(length());
+        if (format == V2) {
+            buffer.put((byte) storedFlag());
+            buffer.putInt(hash);
+            putVarint(buffer, keySize);
+            putVarint(buffer, valueSize);
+            buffer.put(key);
+            buffer.put(value);
+            buffer.putInt((int) checksum(codec));
+        } else {
+            buffer.putInt(storedFlag()).put((byte) 0);
+            buffer.putInt(hash).put((byte) 0);
+            buffer.putLong(format == V1 ? checksum(codec) : location).put((byte) 0);
+            buffer.putInt(keySize).put((byte) 0);
+            buffer.putInt(valueSize).put((byte) 0);
+            buffer.put(key).put((byte) 0);
+            buffer.put(value).put((byte) 0);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads the record at <code>location</code> with positional reads, which do not move the channel position
+     * and can be issued concurrently from several threads.
+     */
     public void read(FileChannel index, long location) throws IOException {
-        try {
-            doMmapRead(index, location);
-        } catch (IOException e) {
-            System.gc();
-            System.runFinalization();
-            doMmapRead(index, location);
+        read(index, location, V0);
+    }
+
+    /**
+     * Positional read of a record in the given layout. The header and most records are fetched with a single
+     * read into a {@link #READ_AHEAD} bytes buffer of the calling thread, larger records take a second read.
+     */
+    public void read(FileChannel index, long location, int format) throws IOException {
+        ByteBuffer buffer = CODEC.get().readAhead;
+        buffer.clear();
+        int length = -1;
+        while (buffer.hasRemaining() && (length < 0 || length > buffer.position())) {
+            if (index.read(buffer, location + buffer.position()) < 0) {
+                break;
+            }
+            length = length(buffer, 0, buffer.position(), format);
+        }
+        buffer.flip();
+        if (length < 0) {
+            throw new EOFException(String.format("Incomplete or invalid record header at %d", location));
+        }
+        if (length > buffer.limit()) {
+            ByteBuffer whole = ByteBuffer.allocate(length);
+            whole.put(buffer);
+            readFully(index, whole, location);
+            buffer = whole;
         }
+        read(buffer, format);
+        this.location = location;
     }
 
-    private void doMmapRead(FileChannel index, long location) throws IOException {
-        ByteBuffer metaBuffer;
-        metaBuffer = index.map(FileChannel.MapMode.READ_ONLY, location, 29);
-        readIndex(metaBuffer);
-        readHeader(metaBuffer);
-        metaBuffer = null;
-        ByteBuffer dataBuffer = index.map(FileChannel.MapMode.READ_ONLY, location + 29, keySize + valueSize + 2);
-        readData(dataBuffer);
-        dataBuffer = null;
+    /**
+     * Positional read of a record whose total length is already known, fetched with exactly one read of
+     * <code>length</code> bytes.
+     */
+    public void read(FileChannel index, long location, int length, int format) throws IOException {
+        ByteBuffer buffer = length <= READ_AHEAD ? CODEC.get().readAhead : ByteBuffer.allocate(length);
+        buffer.clear();
+        buffer.limit(length);
+        readFully(index, buffer, location);
+        if (length(buffer, 0, length, format) != length) {
+            throw new IOException(String.format("Record at %d is not %d bytes long", location, length));
+        }
+        read(buffer, format);
+        this.location = location;
     }
 
-    public void read(DataInput index) throws IOException {
-        byte[] bytes = new byte[29];
-        index.readFully(bytes);
-        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
-        readIndex(byteBuffer);
-        readHeader(byteBuffer);
-        bytes = new byte[keySize + valueSize + 2];
-        index.readFully(bytes);
-        byteBuffer = ByteBuffer.wrap(bytes);
-        readData(byteBuffer);
-    }
-
-    public void writeIndex(DataOutput index) throws IOException {
-        index.write(util.intToBytes(flag));
-        index.write(0);
-        index.write(util.intToBytes(hash));
-        index.write(0);
-        index.write(util.longToBytes(location));
-        index.write(0);
-    }
-
-    //Reads 4 + 1 + 4 + 1 + 8 + 1 = 19bytes
-    private void readIndex(ByteBuffer index) throws IOException {
-        setFlag(readInt(index));
-        index.get();
-        this.hash = readInt(index);
-        index.get();
-        this.location = readLong(index);
-        index.get();
-    }
-
-    //Reads 4 + 1 + 4 + 1 = 10 bytes
-    private void readHeader(ByteBuffer index) throws IOException {
-        this.keySize = readInt(index);
-        index.get();
-        this.valueSize = readInt(index);
-        index.get();
-        if(DEBUG){
-            logger.log(Level.SEVERE, String.format("keySize[%d], valueSize[%d]", keySize, valueSize));
-            if(keySize > 1000){
-                logger.log(Level.SEVERE, "Large key");
+    /**
+     * Fills the remainder of <code>buffer</code>, which holds the bytes at <code>location</code> up to its position.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long location) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, location + buffer.position()) < 0) {
+                throw new EOFException(String.format("Unexpected end of file reading %d bytes at %d", buffer.limit(), location));
             }
         }
+        buffer.flip();
     }
 
-    //Reads keySize + 1+ valueSize + 1 bytes
-    private void readData(ByteBuffer index) throws IOException {
+    /**
+     * Reads a record starting at the position of <code>buffer</code>, leaving the position after the record.
+     */
+    public void read(ByteBuffer buffer) throws IOException {
+        read(buffer, V0);
+    }
+
+    /**
+     * Reads a record in the given layout starting at the position of <code>buffer</code>, leaving the position
+     * after the record. The location still has to be set.
+     */
+    public void read(ByteBuffer buffer, int format) throws IOException {
+        this.format = format;
+        if (format != V2) {
+            setStoredFlag(buffer.getInt());
+            buffer.get();
+            this.hash = buffer.getInt();
+            buffer.get();
+            long slot = buffer.getLong();
+            buffer.get();
+            if (format == V1) {
+                this.storedChecksum = slot;
+            } else {
+                this.location = slot;
+            }
+            this.keySize = buffer.getInt();
+            buffer.get();
+            this.valueSize = buffer.getInt();
+            buffer.get();
+            readData(buffer, 1);
+            return;
+        }
+        setStoredFlag(buffer.get() & 0xFF);
+        this.hash = buffer.getInt();
+        this.keySize = getVarint(buffer);
+        this.valueSize = getVarint(buffer);
+        readData(buffer, 0);
+        this.storedChecksum = buffer.getInt() & 0xFFFFFFFFL;
+    }
+
+    private void readData(ByteBuffer buffer, int padding) {
+        if(DEBUG){
+            logger.log(Level.SEVERE, String.format("keySize[%d], valueSize[%d]", keySize, valueSize));
+        }
         this.key = new byte[keySize];
         this.value = new byte[valueSize];
-        index.get(key);
-        index.get();
-        index.get(value);
-        index.get();
+        buffer.get(key);
+        buffer.position(buffer.position() + padding);
+        buffer.get(value);
+        buffer.position(buffer.position() + padding);
+    }
+
+    /**
+     * Total length of the record in the given layout starting at <code>offset</code>, decoded from its header.
+     *
+     * @return -1 if the header does not fit before the limit of <code>buffer</code> or cannot be that of a record.
+     */
+    public static int length(ByteBuffer buffer, int offset, int format) {
+        return length(buffer, offset, buffer.limit(), format);
+    }
+
+    private static int length(ByteBuffer buffer, int offset, int end, int format) {
+        long keySize;
+        long valueSize;
+        long length;
+        if (format != V2) {
+            if (end - offset < HEADER_SIZE) {
+                return -1;
+            }
+            keySize = buffer.getInt(offset + 19);
+            valueSize = buffer.getInt(offset + 24);
+            length = HEADER_SIZE + keySize + valueSize + 2;
+        } else {
+            int position = offset + 5;
+            keySize = getVarint(buffer, position, end);
+            position += varintLength((int) keySize);
+            valueSize = keySize < 0 ? -1 : getVarint(buffer, position, end);
+            position += varintLength((int) valueSize);
+            length = position - offset + keySize + valueSize + CHECKSUM_SIZE;
+        }
+        if (keySize < 0 || valueSize < 0 || length > Integer.MAX_VALUE) {
+            return -1;
+        }
+        return (int) length;
+    }
+
+    private static int length(int format, int keySize, int valueSize) {
+        if (format != V2) {
+            return HEADER_SIZE + keySize + valueSize + 2;
+        }
+        return 5 + varintLength(keySize) + varintLength(valueSize) + keySize + valueSize + CHECKSUM_SIZE;
     }
 
-    public void writeDate(DataOutput index) throws IOException {
-        index.write(util.intToBytes(keySize));
-        index.write(0);
-        index.write(util.intToBytes(valueSize));
-        index.write(0);
-        index.write(key);
-        index.write(0);
-        index.write(value);
-        index.write(0);
+    private static void putVarint(ByteBuffer buffer, int n) {
+        while ((n & ~0x7F) != 0) {
+            buffer.put((byte) ((n & 0x7F) | 0x80));
+            n >>>= 7;
+        }
+        buffer.put((byte) n);
+    }
+
+    private static int getVarint(ByteBuffer buffer) throws IOException {
+        int n = getVarint(buffer, buffer.position(), buffer.limit());
+        if (n < 0) {
+            throw new IOException("Invalid varint at " + buffer.position());
+        }
+        buffer.position(buffer.position() + varintLength(n));
+        return n;
     }
 
-    private int readInt(ByteBuffer file) throws IOException {
-        byte[] buffer = new byte[4];
-        file.get(buffer);
-        return util.byteToInt(buffer);
+    /**
+     * @return the non negative int encoded at <code>index</code>, -1 if it is incomplete before <code>end</code>
+     *         or invalid.
+     */
+    private static int getVarint(ByteBuffer buffer, int index, int end) {
+        int n = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (index >= end) {
+                return -1;
+            }
+            int b = buffer.get(index++);
+            n |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return n < 0 ? -1 : n;
+            }
+        }
+        return -1;
     }
 
-    private long readLong(ByteBuffer file) throws IOException {
-        byte[] buffer = new byte[8];
-        file.get(buffer);
-        return util.byteToLong(buffer);
+    private static int varintLength(int n) {
+        int length = 1;
+        while ((n & ~0x7F) != 0) {
+            length++;
+            n >>>= 7;
+        }
+        return length;
+    }
+
+    /**
+     * Reads a record in the V0 or V1 layout.
+     */
+    public void read(DataInput index) throws IOException {
+        ByteBuffer buffer = CODEC.get().readAhead;
+        index.readFully(buffer.array(), 0, HEADER_SIZE);
+        buffer.clear();
+        int length = length(buffer, 0, HEADER_SIZE, V0);
+        if (length < 0) {
+            throw new IOException("Invalid record header");
+        }
+        if (length > buffer.capacity()) {
+            ByteBuffer whole = ByteBuffer.allocate(length);
+            whole.put(buffer.array(), 0, HEADER_SIZE);
+            buffer = whole;
+        }
+        index.readFully(buffer.array(), HEADER_SIZE, length - HEADER_SIZE);
+        buffer.position(0).limit(length);
+        read(buffer, V0);
     }
 
     public boolean equals(Object other) {
@@ -172,7 +376,7 @@ public class Record implements Comparable<Record>{
             return false;
         }
         Record that = (Record) other;
-        if (this.flag != that.flag) {
+        if (this.flag != that.flag || this.compressed != that.compressed) {
             return false;
         }
         if (this.hash != that.hash) {
@@ -225,23 +429,77 @@ public class Record implements Comparable<Record>{
         return value;
     }
 
+    /**
+     * True if {@link #getValue()} is the compressed form of the serialized value, see {@link Compressor}.
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public void setValue(byte[] value, boolean compressed) {
+        this.value = value;
+        this.valueSize = value.length;
+        this.compressed = compressed;
+    }
+
+    private int storedFlag() {
+        return compressed ? flag | COMPRESSED : flag;
+    }
+
+    private void setStoredFlag(int stored) {
+        this.flag = stored & ~COMPRESSED;
+        this.compressed = (stored & COMPRESSED) != 0;
+    }
+
     public long getLocation() {
         return location;
     }
 
-    public int size() {
-        return keySize + valueSize + (4 * 4) + 8;// int fields + long fields
+    /**
+     * CRC32C of everything in the record but its location, which is implied by where the record is stored.
+     */
+    public long checksum() {
+        return checksum(CODEC.get());
+    }
+
+    private long checksum(Codec codec) {
+        ByteBuffer fields = codec.fields;
+        fields.clear();
+        fields.putInt(storedFlag()).putInt(hash).putInt(keySize).putInt(valueSize);
+        CRC32C crc = codec.crc;
+        crc.reset();
+        crc.update(fields.array(), 0, fields.position());
+        crc.update(key);
+        crc.update(value);
+        return crc.getValue();
+    }
+
+    /**
+     * For a record read in the V1 or V2 layout, true if the stored checksum matches the contents.
+     */
+    public boolean hasValidChecksum() {
+        return storedChecksum == checksum();
+    }
+
+    public int getFormat() {
+        return format;
+    }
+
+    /**
+     * Number of bytes the record takes in the data file, in the layout it was last read or written in.
+     */
+    public int length() {
+        return length(format, keySize, valueSize);
     }
 
     @Override
     public String toString() {
         return "Record{" +
-                "key=" + util.deserialize(key) +
-                "value =" + util.deserialize(value) +
                 "keySize =" + keySize+
                 "valueSize =" + valueSize +
                 ", hash=" + hash +
                 ", flag=" + flag +
+                ", compressed=" + compressed +
                 ", location=" + location +
                 '}';
     }
@@ -254,4 +512,27 @@ public class Record implements Comparable<Record>{
     public int compareTo(Record o) {
         return location > o.location ? 1 : (location < o.location ? -1 : 0);
     }
+
+    /**
+     * Scratch state of a thread, so that encoding and decoding allocate nothing but the key and value arrays of
+     * the records read.
+     */
+    private static final class Codec {
+        private final CRC32C crc = new CRC32C();
+        private final ByteBuffer fields = ByteBuffer.allocate(16);
+        private final ByteBuffer readAhead = ByteBuffer.allocate(READ_AHEAD);
+        private ByteBuffer encoded = ByteBuffer.allocate(ENCODE_BUFFER_SIZE);
+
+        private ByteBuffer encodeBuffer(int length) {
+            if (length <= encoded.capacity()) {
+                encoded.clear();
+                return encoded;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            if (length <= MAX_RETAINED_BUFFER) {
+                encoded = buffer;
+            }
+            return buffer;
+        }
+    }
 }
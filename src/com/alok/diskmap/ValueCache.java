@@ -0,0 +1,397 @@
+/*
+ * Copyright 2009 Alok Singh
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.alok.diskmap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Memory bounded cache of serialized values in front of a page, see {@link Configuration#setCacheSize(long)}.
+ * <p/>
+ * Entries are evicted with CLOCK: a hit sets the reference bit of an entry, the hand clears the bits it passes
+ * and evicts the first entry without one. A new entry is only admitted in place of the entry the hand picks if
+ * its key has been read more often recently (TinyLFU), as estimated by a count-min sketch of 4 bit counters
+ * that are halved periodically. Keys read once, such as those of a scan, are thus kept from flushing the
+ * entries that are read over and over.
+ * <p/>
+ * The cache is split in segments, each with its own lock, capacity and sketch. A load that misses takes a
+ * {@link #stamp(Object)} before reading the page and the value it read is only cached if no write invalidated
+ * the key in the meantime.
+ */
+public class ValueCache<K> {
+    private static final int SEGMENTS = 16;
+    private static final int STAMPS = 1024;
+    /** Estimate of the heap taken by an entry besides its key and value bytes */
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int AVERAGE_ENTRY_SIZE = 256;
+
+    private final long capacity;
+    private final Segment<K>[] segments;
+    private final AtomicLongArray stamps = new AtomicLongArray(STAMPS);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * @param capacity bytes of keys and values held at most, 0 disables the cache.
+     */
+    @SuppressWarnings("unchecked")
+    public ValueCache(long capacity) {
+        this.capacity = Math.max(0, capacity);
+        this.segments = (Segment<K>[]) new Segment<?>[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment<K>(this.capacity / SEGMENTS);
+        }
+    }
+
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * To be taken before reading the value of <code>key</code> from the page, then passed to {@link #put}.
+     */
+    public long stamp(K key) {
+        return isEnabled() ? stamps.get(spread(key.hashCode()) & (STAMPS - 1)) : 0;
+    }
+
+    /**
+     * @return the serialized value of <code>key</code>, null if it is not cached.
+     */
+    public byte[] get(K key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        int hash = spread(key.hashCode());
+        Segment<K> segment = segment(hash);
+        byte[] value;
+        segment.lock.lock();
+        try {
+            segment.sketch.increment(hash);
+            Entry<K> entry = segment.entries.get(key);
+            if (entry == null) {
+                value = null;
+            } else {
+                entry.referenced = true;
+                value = entry.value;
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    /**
+     * Caches the value read for <code>key</code>, unless the key was invalidated since <code>stamp</code> was taken
+     * or the value is not admitted.
+     *
+     * @param keySize size of the serialized key, counted against the capacity.
+     */
+    public void put(K key, byte[] value, int keySize, long stamp) {
+        if (!isEnabled()) {
+            return;
+        }
+        int hash = spread(key.hashCode());
+        Segment<K> segment = segment(hash);
+        int size = keySize + value.length + ENTRY_OVERHEAD;
+        if (size > segment.capacity) {
+            return;
+        }
+        segment.lock.lock();
+        try {
+            if (stamps.get(hash & (STAMPS - 1)) != stamp || segment.entries.containsKey(key)) {
+                return;
+            }
+            int frequency = segment.sketch.frequency(hash);
+            while (segment.size + size > segment.capacity) {
+                Entry<K> victim = segment.victim();
+                if (frequency <= segment.sketch.frequency(spread(victim.key.hashCode()))) {
+                    rejections.increment();
+                    return;
+                }
+                segment.remove(victim);
+                evictions.increment();
+            }
+            segment.add(new Entry<K>(key, value, size));
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Drops <code>key</code>, to be called once a write of the key is visible to readers of the page.
+     */
+    public void invalidate(K key) {
+        if (!isEnabled()) {
+            return;
+        }
+        int hash = spread(key.hashCode());
+        Segment<K> segment = segment(hash);
+        segment.lock.lock();
+        try {
+            stamps.incrementAndGet(hash & (STAMPS - 1));
+            Entry<K> entry = segment.entries.get(key);
+            if (entry != null) {
+                segment.remove(entry);
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public void clear() {
+        if (!isEnabled()) {
+            return;
+        }
+        for (int i = 0; i < SEGMENTS; i++) {
+            Segment<K> segment = segments[i];
+            segment.lock.lock();
+            try {
+                for (int slot = i; slot < STAMPS; slot += SEGMENTS) {
+                    stamps.incrementAndGet(slot);
+                }
+                segment.entries.clear();
+                segment.clock.clear();
+                segment.size = 0;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    public Stats stats() {
+        long size = 0;
+        int count = 0;
+        for (Segment<K> segment : segments) {
+            segment.lock.lock();
+            try {
+                size += segment.size;
+                count += segment.entries.size();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), rejections.sum(), count, size);
+    }
+
+    private Segment<K> segment(int hash) {
+        //Same low bits as the stamp slot, so a slot is always guarded by the lock of a single segment
+        return segments[hash & (SEGMENTS - 1)];
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    private static final class Entry<K> {
+        private final K key;
+        private final byte[] value;
+        private final int size;
+        private boolean referenced;
+        private int index;
+
+        private Entry(K key, byte[] value, int size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    private static final class Segment<K> {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final long capacity;
+        private final Map<K, Entry<K>> entries = new HashMap<K, Entry<K>>();
+        private final List<Entry<K>> clock = new ArrayList<Entry<K>>();
+        private final FrequencySketch sketch;
+        private long size;
+        private int hand;
+
+        private Segment(long capacity) {
+            this.capacity = capacity;
+            this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(64, capacity / AVERAGE_ENTRY_SIZE)));
+        }
+
+        private void add(Entry<K> entry) {
+            entry.index = clock.size();
+            clock.add(entry);
+            entries.put(entry.key, entry);
+            size += entry.size;
+        }
+
+        private void remove(Entry<K> entry) {
+            //The last entry takes the free spot, the ring order does not matter to CLOCK
+            Entry<K> last = clock.remove(clock.size() - 1);
+            if (last != entry) {
+                last.index = entry.index;
+                clock.set(entry.index, last);
+            }
+            entries.remove(entry.key);
+            size -= entry.size;
+        }
+
+        private Entry<K> victim() {
+            while (true) {
+                if (hand >= clock.size()) {
+                    hand = 0;
+                }
+                Entry<K> entry = clock.get(hand++);
+                if (!entry.referenced) {
+                    return entry;
+                }
+                entry.referenced = false;
+            }
+        }
+    }
+
+    /**
+     * Count-min sketch of 4 bit counters, 4 counters per key, halved once the number of increments reaches 10
+     * times the number of expected keys so that the estimates follow the recent popularity of the keys.
+     */
+    private static final class FrequencySketch {
+        private final long[] table;
+        private final int sampleSize;
+        private int additions;
+
+        private FrequencySketch(int expectedKeys) {
+            //A long of 16 counters per key, few enough collisions for the estimates to tell hot keys apart
+            this.table = new long[Integer.highestOneBit(Math.max(expectedKeys, 2) - 1) << 1];
+            this.sampleSize = 10 * expectedKeys;
+        }
+
+        private int frequency(int hash) {
+            int frequency = 15;
+            for (int i = 0; i < 4; i++) {
+                frequency = Math.min(frequency, (int) ((table[index(hash, i)] >>> offset(hash, i)) & 0xF));
+            }
+            return frequency;
+        }
+
+        private void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int index = index(hash, i);
+                int offset = offset(hash, i);
+                if (((table[index] >>> offset) & 0xF) < 15) {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+            }
+            additions /= 2;
+        }
+
+        private int index(int hash, int i) {
+            int h = (hash + i * 0x9E3779B9) * 0x85ebca6b;
+            return ((h ^ (h >>> 15)) & 0x7FFFFFFF) % table.length;
+        }
+
+        /**
+         * Each of the 4 hashes of a key uses its own group of 4 counters of the long, picked from the hash.
+         */
+        private int offset(int hash, int i) {
+            return ((i << 2) + ((hash >>> (i << 3)) & 3)) << 2;
+        }
+    }
+
+    /**
+     * Snapshot of the counters of a cache, or of the sum of several caches.
+     */
+    public static class Stats {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long rejections;
+        private final int count;
+        private final long size;
+
+        public Stats(long hits, long misses, long evictions, long rejections, int count, long size) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.rejections = rejections;
+            this.count = count;
+            this.size = size;
+        }
+
+        public Stats add(Stats other) {
+            return new Stats(hits + other.hits, misses + other.misses, evictions + other.evictions,
+                    rejections + other.rejections, count + other.count, size + other.size);
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public double getHitRate() {
+            long requests = hits + misses;
+            return requests == 0 ? 0 : (double) hits / requests;
+        }
+
+        /** Entries dropped to make room for others */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /** Values read from the page that were not cached because they were less popular than the entry they would have replaced */
+        public long getRejections() {
+            return rejections;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        /** Estimated bytes held */
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d, misses=%d, hitRate=%.3f, evictions=%d, rejections=%d, count=%d, size=%d",
+                    hits, misses, getHitRate(), evictions, rejections, count, size);
+        }
+    }
+}
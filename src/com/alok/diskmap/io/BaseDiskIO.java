@@ -19,29 +19,62 @@ package com.alok.diskmap.io;
 import com.alok.diskmap.Configuration;
 import com.alok.diskmap.Record;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Data files start with a {@link #HEADER_LENGTH} bytes header: magic, version, flags and a reserved int. The
+ * version is the {@link Record} layout used by the file, new files use {@link Record#V2}. Files without the header
+ * predate checksums, their records start at 0 and use the {@link Record#V0} layout.
+ * <p/>
+ * The {@link #CLEAN} flag is set by {@link #close()} once everything is on disk and cleared, durably, when the
+ * file is opened again. A file that was closed cleanly is trusted as is, otherwise records are verified as they
+ * are scanned so that the tail of a write cut short by a crash is detected.
+ */
 public abstract class BaseDiskIO implements DiskIO {
     private static final Logger logger = Logger.getLogger(BlockingDiskIO.class.getName());
+    private static final int MAGIC = 0x44424D44;
+    private static final int VERSION = Record.V2;
+    private static final int HEADER_LENGTH = 16;
+    private static final int FLAGS_OFFSET = 8;
+    private static final int CLEAN = 1;
     protected File file;
     private RandomAccessFile writer;
-    private RandomAccessFile reader;
-    private long lastFlush;
+    private volatile RandomAccessFile reader;
+    private volatile long lastFlush;
+    private final AtomicLong writes = new AtomicLong();
+    private final Object syncLock = new Object();
+    private long synced;
+    private boolean syncing;
+    private volatile long dataStart;
+    private volatile int format;
+    private volatile long verifiedLength;
     protected Configuration config;
     private static final boolean DEBUG = false;
+    private static final int BATCH_BUFFER_SIZE = 1024 * 1024;
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+    //Records of a batch lookup this close are read together, reading the gap costs less than another read
+    private static final int COALESCE_GAP = 4 * 1024;
+    private static final int MAX_COALESCED_READ = 256 * 1024;
 
     public BaseDiskIO(Configuration config, File f){
         try {
             this.config = config;
-            if(f == null){
-                this.file = new File(config.getDataFileName("dat"));
-            }
+            this.file = f == null ? new File(config.getDataFileName("dat")) : f;
             if (!this.file.exists()) {
                 boolean created = this.file.createNewFile();
                 if(!created){
@@ -58,57 +91,180 @@ public abstract class BaseDiskIO implements DiskIO {
         try{
             this.setReader(new RandomAccessFile(this.file, "r"));
             this.setWriter(new RandomAccessFile(this.file, "rw"));
+            openHeader(getWriter());
             this.getWriter().seek(reader().length());
         }catch(Exception e){
             close(getReader());
             close(getWriter());
+            throw newRuntimeException(e);
+        }
+    }
+
+    private void openHeader(RandomAccessFile writer) throws IOException {
+        if (writer.length() == 0) {
+            writeHeader(writer);
         }
+        writer.seek(0);
+        if (writer.length() < HEADER_LENGTH || writer.readInt() != MAGIC) {
+            dataStart = 0;
+            format = Record.V0;
+            verifiedLength = 0;
+            return;
+        }
+        int version = writer.readInt();
+        if (version != Record.V1 && version != Record.V2) {
+            throw new IOException(String.format("%s has an unsupported version %d", file, version));
+        }
+        int flags = writer.readInt();
+        dataStart = HEADER_LENGTH;
+        format = version;
+        if ((flags & CLEAN) != 0) {
+            verifiedLength = writer.length();
+            //From now on the file may change, a crash must not find it marked clean
+            writer.seek(FLAGS_OFFSET);
+            writer.writeInt(flags & ~CLEAN);
+            writer.getChannel().force(false);
+        } else {
+            verifiedLength = HEADER_LENGTH;
+        }
+    }
+
+    private void writeHeader(RandomAccessFile writer) throws IOException {
+        writer.seek(0);
+        writer.writeInt(MAGIC);
+        writer.writeInt(VERSION);
+        writer.writeInt(0);
+        writer.writeInt(0);
     }
 
     @Override
     public Iterator<Record> iterator() {
-        final RandomAccessFile rc;
+        return iterator(0);
+    }
+
+    @Override
+    public Iterator<Record> iterator(long location) {
+        return iterator(location, Long.MAX_VALUE);
+    }
+
+    @Override
+    public Iterator<Record> iterator(long location, long end) {
         try {
-            rc = new RandomAccessFile(file, "r");
-            if (rc.length() > 0) {
-                rc.seek(0);
-            }
+            return new ScanIterator(file, Math.max(location, dataStart), end, format, verifiedLength);
         } catch (Exception e) {
             throw newRuntimeException(e);
         }
+    }
 
-        return new Iterator<Record>(){
-            @Override
-            public boolean hasNext() {
-                try {
-                    if(rc.getFilePointer() < rc.length()){
-                        return true;
-                    }
-                    close(rc);
-                    return false;
-                } catch (IOException e) {
+    /**
+     * Reads the file sequentially through a window of {@link #SCAN_BUFFER_SIZE} bytes and decodes the records
+     * from it, a few large reads instead of a couple of small ones per record. A record is only read once the
+     * file is known to hold all of it, so a torn header cannot ask for a huge or negative allocation.
+     */
+    private class ScanIterator implements Iterator<Record> {
+        private final RandomAccessFile rc;
+        private final File source;
+        private final int format;
+        private final long verifyFrom;
+        private final long end;
+        private ByteBuffer window = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        private long windowStart;
+        private Record next;
+
+        private ScanIterator(File source, long location, long end, int format, long verifyFrom) throws IOException {
+            this.rc = new RandomAccessFile(source, "r");
+            this.source = source;
+            this.end = end;
+            this.format = format;
+            this.verifyFrom = verifyFrom;
+            this.windowStart = location;
+            window.limit(0);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            try {
+                next = read();
+                if (next == null) {
                     close(rc);
-                    throw newRuntimeException(e);
                 }
+                return next != null;
+            } catch (CorruptRecordException e) {
+                close(rc);
+                throw e;
+            } catch (IOException e) {
+                close(rc);
+                throw newRuntimeException(e);
             }
+        }
 
-            @Override
-            public Record next() {
-                try {
-                    Record r = new Record();
-                    r.read(rc);
-                    return r;
-                } catch (IOException e) {
-                    close(rc);
-                    throw newRuntimeException(e);
+        @Override
+        public Record next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Record r = next;
+            next = null;
+            return r;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Remove is not supported");
+        }
+
+        private Record read() throws IOException {
+            long location = windowStart + window.position();
+            int length = Record.length(window, window.position(), format);
+            if (length < 0 || length > window.remaining()) {
+                fill(length);
+                if (!window.hasRemaining()) {
+                    return null;
+                }
+                length = Record.length(window, 0, format);
+                if (length > window.capacity()) {
+                    //The header was not in the window before, now that the length is known make room for it
+                    fill(length);
+                }
+                if (length < 0 || length > window.remaining()) {
+                    throw new CorruptRecordException(source, location, "incomplete record");
                 }
             }
+            Record r = new Record();
+            r.read(window, format);
+            if (format != Record.V0 && location >= verifyFrom && !r.hasValidChecksum()) {
+                throw new CorruptRecordException(source, location, "checksum mismatch");
+            }
+            r.setLocation(location);
+            return r;
+        }
 
-            @Override
-            public void remove() {
-                throw new UnsupportedOperationException("Remove is not supported");
+        /**
+         * Moves the unread bytes to the start of the window and reads as much of the file after them as fits,
+         * growing the window first when the file holds a record of <code>length</code> bytes that is larger.
+         */
+        private void fill(int length) throws IOException {
+            long start = windowStart + window.position();
+            long available = Math.min(rc.length(), end) - start;
+            window.compact();
+            if (length > window.capacity() && length <= available) {
+                ByteBuffer larger = ByteBuffer.allocate(length);
+                window.flip();
+                larger.put(window);
+                window = larger;
+            }
+            windowStart = start;
+            int count = (int) Math.min(window.remaining(), available - window.position());
+            if (count > 0) {
+                rc.seek(start + window.position());
+                rc.readFully(window.array(), window.position(), count);
+                window.position(window.position() + count);
             }
-        };
+            window.flip();
+        }
     }
 
     private void close(RandomAccessFile rc) {
@@ -122,22 +278,147 @@ public abstract class BaseDiskIO implements DiskIO {
 
     @Override
     public void close() {
+        if (format != Record.V0 && getWriter() != null) {
+            try {
+                markClean(getWriter());
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, e.getMessage(), e);
+            }
+        } else if (config.getDurability() != Configuration.Durability.NONE && getWriter() != null) {
+            try {
+                doFlush();
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, e.getMessage(), e);
+            }
+        }
         close(this.getWriter());
         close(this.getReader());
         this.file = null;
     }
 
-    public abstract Record lookup(long location);
+    /**
+     * Sets the {@link #CLEAN} flag, only after the records are on disk so the flag never vouches for a torn tail.
+     */
+    private void markClean(RandomAccessFile writer) throws IOException {
+        writer.getChannel().force(false);
+        writer.seek(FLAGS_OFFSET);
+        writer.writeInt(CLEAN);
+        writer.getChannel().force(false);
+    }
+
+    @Override
+    public void truncate(long length) {
+        try {
+            writer().setLength(length);
+            writer().seek(length);
+            verifiedLength = Math.min(verifiedLength, length);
+        } catch (IOException e) {
+            throw newRuntimeException(e);
+        }
+    }
+
+    public Record lookup(long location) {
+        return lookup(location, 0);
+    }
+
+    public abstract Record lookup(long location, int length);
+
+    public CompletableFuture<Record> lookupAsync(long location, int length) {
+        CompletableFuture<Record> result = new CompletableFuture<Record>();
+        try {
+            result.complete(lookup(location, length));
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Cuts the locations in runs of records at most {@link #COALESCE_GAP} bytes apart, each run is read at once
+     * and decoded from memory. Records read on their own go through {@link #lookupAsync}, so that a reader with
+     * a queue of its own serves them concurrently.
+     */
+    public Record[] lookup(long[] locations, int[] lengths) {
+        Record[] records = new Record[locations.length];
+        CompletableFuture<?>[] reads = new CompletableFuture<?>[locations.length];
+        int from = 0;
+        while (from < locations.length) {
+            int to = from + 1;
+            if (lengths[from] > 0) {
+                long end = locations[from] + lengths[from];
+                while (to < locations.length && lengths[to] > 0 && locations[to] >= end
+                        && locations[to] - end <= COALESCE_GAP
+                        && locations[to] + lengths[to] - locations[from] <= MAX_COALESCED_READ) {
+                    end = locations[to] + lengths[to];
+                    to++;
+                }
+            }
+            if (to - from == 1) {
+                reads[from] = lookupAsync(locations[from], lengths[from]);
+            } else {
+                readRun(locations, lengths, from, to, records);
+            }
+            from = to;
+        }
+        for (int i = 0; i < reads.length; i++) {
+            if (reads[i] != null) {
+                try {
+                    records[i] = (Record) reads[i].join();
+                } catch (CompletionException e) {
+                    throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Reads the records <code>from</code> (inclusive) to <code>to</code> (exclusive), which lie one after the
+     * other, with one positional read spanning all of them.
+     */
+    private void readRun(long[] locations, int[] lengths, int from, int to, Record[] records) {
+        long start = locations[from];
+        int size = (int) (locations[to - 1] + lengths[to - 1] - start);
+        RandomAccessFile reader = reader();
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            FileChannel channel = reader.getChannel();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) < 0) {
+                    throw new EOFException(String.format("Unexpected end of file reading %d bytes at %d", size, start));
+                }
+            }
+            int format = format();
+            for (int i = from; i < to; i++) {
+                int offset = (int) (locations[i] - start);
+                ByteBuffer view = buffer.duplicate();
+                view.limit(offset + lengths[i]);
+                view.position(offset);
+                if (Record.length(view, offset, format) != lengths[i]) {
+                    throw new IOException(String.format("Record at %d is not %d bytes long", locations[i], lengths[i]));
+                }
+                Record r = new Record();
+                r.read(view, format);
+                r.setLocation(locations[i]);
+                records[i] = r;
+            }
+        } catch (ClosedByInterruptException e) {
+            reopenReader(reader);
+            throw newRuntimeException(e);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, String.format("lookup(%d, %d) failed", start, size));
+            throw newRuntimeException(e);
+        }
+    }
 
-    public Record doLookup(long location) {
+    public Record doLookup(long location, int length) {
         try {
             Record r = new Record();
             RandomAccessFile reader = reader();
             synchronized (reader){
-                 reader.seek(location);
-                r.read(reader);
-//                r.read(reader.getChannel(), location);
+                read(r, reader, location, length);
             }
+            r.setLocation(location);
             return r;
         } catch (IOException e) {
             logger.log(Level.SEVERE, String.format("lookup(%d) failed", location));
@@ -145,23 +426,184 @@ public abstract class BaseDiskIO implements DiskIO {
         }
     }
 
+    /**
+     * Reads the record at <code>location</code> with positional reads on the reader channel, without locking.
+     */
+    public Record doPositionalLookup(long location, int length) {
+        RandomAccessFile reader = reader();
+        try {
+            Record r = new Record();
+            read(r, reader, location, length);
+            return r;
+        } catch (ClosedByInterruptException e) {
+            //An interrupted reader closes the channel for everybody, open a new one before giving up
+            reopenReader(reader);
+            throw newRuntimeException(e);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, String.format("lookup(%d) failed", location));
+            throw newRuntimeException(e);
+        }
+    }
+
+    private void read(Record r, RandomAccessFile reader, long location, int length) throws IOException {
+        if (length > 0) {
+            r.read(reader.getChannel(), location, length, format);
+        } else {
+            r.read(reader.getChannel(), location, format);
+        }
+    }
+
+    private synchronized void reopenReader(RandomAccessFile closed) {
+        if (getReader() != closed) {
+            return;
+        }
+        try {
+            setReader(new RandomAccessFile(this.file, "r"));
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+        }
+    }
+
     @Override
     public abstract long write(Record r);
 
     protected long doWrite(Record r, RandomAccessFile writer) throws IOException{
+        return append(r, writer, format);
+    }
+
+    /**
+     * Writes <code>r</code> with a single write. Also sets the layout of <code>r</code>, so that its
+     * {@link Record#length()} is the one in this file.
+     */
+    private long append(Record r, RandomAccessFile writer, int format) throws IOException {
         long location = writer.getFilePointer();
-        Record newRecord = new Record(r, location);
-        newRecord.write(writer);
+        ByteBuffer encoded = r.encode(format, location);
+        writer.write(encoded.array(), 0, encoded.limit());
+        writes.incrementAndGet();
         return location;
     }
 
+    @Override
+    public long[] write(Record... records) {
+        try {
+            return doWrite(records, writer());
+        } catch (IOException e) {
+            throw newRuntimeException(e);
+        }
+    }
+
+    /**
+     * Encodes <code>records</code> into a buffer and hands it to the file in chunks of
+     * {@link #BATCH_BUFFER_SIZE} bytes, instead of one write per record.
+     */
+    protected long[] doWrite(Record[] records, RandomAccessFile writer) throws IOException {
+        long[] locations = new long[records.length];
+        long start = writer.getFilePointer();
+        BatchBuffer bytes = new BatchBuffer();
+        for (int i = 0; i < records.length; i++) {
+            locations[i] = start + bytes.size();
+            ByteBuffer encoded = records[i].encode(format, locations[i]);
+            bytes.write(encoded.array(), 0, encoded.limit());
+            if (bytes.size() >= BATCH_BUFFER_SIZE) {
+                start += bytes.size();
+                bytes.writeTo(writer);
+            }
+        }
+        bytes.writeTo(writer);
+        writes.incrementAndGet();
+        return locations;
+    }
+
+    private static class BatchBuffer extends ByteArrayOutputStream {
+        private BatchBuffer() {
+            super(BATCH_BUFFER_SIZE + 4096);
+        }
+
+        private void writeTo(RandomAccessFile file) throws IOException {
+            file.write(buf, 0, count);
+            reset();
+        }
+    }
+
     protected void doFlush() {
+        groupSync(writes.get(), true);
+    }
+
+    @Override
+    public long sequence() {
+        return writes.get();
+    }
+
+    @Override
+    public void force() {
+        doFlush();
+    }
+
+    @Override
+    public void sync(long sequence) {
+        switch (config.getDurability()) {
+            case NONE:
+                return;
+            case INTERVAL:
+                if (System.currentTimeMillis() - lastFlush >= config.getFlushInterval()) {
+                    groupSync(sequence, false);
+                }
+                return;
+            default:
+                groupSync(sequence, true);
+        }
+    }
+
+    /**
+     * Group commit: the first caller that finds its write not yet on disk forces the file, covering every
+     * write made up to that point, while the callers arriving in the meantime wait and are usually covered by
+     * that same force or the next one. A burst of N concurrent writes costs a couple of forces instead of N.
+     */
+    private void groupSync(long sequence, boolean wait) {
+        synchronized (syncLock) {
+            while (synced < sequence && syncing) {
+                if (!wait) {
+                    return;
+                }
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw newRuntimeException(e);
+                }
+            }
+            if (synced >= sequence) {
+                return;
+            }
+            syncing = true;
+        }
+        long target = writes.get();
+        boolean done = false;
         try {
-                writer().getChannel().force(false);
-                this.lastFlush = System.currentTimeMillis();
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+            writer().getChannel().force(false);
+            done = true;
+        } catch (ClosedChannelException e) {
+            //The file was closed by clear or close, which sync it themselves
+            done = true;
+        } catch (IOException e) {
+            throw newRuntimeException(e);
+        } finally {
+            synchronized (syncLock) {
+                if (done) {
+                    synced = Math.max(synced, target);
+                    lastFlush = System.currentTimeMillis();
+                }
+                syncing = false;
+                syncLock.notifyAll();
             }
+        }
+    }
+
+    /**
+     * {@link Record} layout of the file.
+     */
+    protected final int format() {
+        return format;
     }
 
     protected final RandomAccessFile writer() {
@@ -176,50 +618,22 @@ public abstract class BaseDiskIO implements DiskIO {
         return config;
     }
 
-    @Override
-    public abstract void vacuum(RecordFilter filter) throws Exception;
-
     @Override
     public void clear() {
         closeFileHandlers();
-        boolean b = new File(config.getDataFileName("dat")).delete();
+        boolean b = file.delete();
         if(b){
             try {
-                boolean created = new File(config.getDataFileName("dat")).createNewFile();
+                boolean created = file.createNewFile();
                 if(created){
                     createFileHandlers();
                     return;
                 }
             } catch (IOException e) {
-                throw new RuntimeException("Unable to clear file: " + config.getDataFileName("dat"), e);
-            }
-        }
-        throw new RuntimeException("Unable to clear file: " + config.getDataFileName("dat"));
-    }
-
-    public void doVacuum(RecordFilter filter) throws Exception {
-        doFlush();
-        closeFileHandlers();
-        File newFile = new File(config.getDataFileName("tmp"));
-        RandomAccessFile newWriter = new RandomAccessFile(newFile, "rw");
-        for(Record r : this){
-            if(filter.accept(r)){
-                long location = doWrite(r, newWriter);
-                filter.update(r, location);
-            }
-        }
-        newWriter.close();
-        if(this.file.renameTo(new File(config.getDataFileName("bak")))){
-            if(newFile.renameTo(new File(config.getDataFileName("dat")))){
-                this.file = new File(config.getDataFileName("dat"));
-                createFileHandlers();
-                new File(config.getDataFileName("bak")).delete();
-            }else{
-                throw new RuntimeException("Unable to vacuum the data file.");
+                throw new RuntimeException("Unable to clear file: " + file, e);
             }
-        }else{
-            throw new RuntimeException("Unable to vacuum the data file.");
         }
+        throw new RuntimeException("Unable to clear file: " + file);
     }
 
     @Override
@@ -237,30 +651,6 @@ public abstract class BaseDiskIO implements DiskIO {
         close(getWriter());
     }
 
-    @Override
-    public abstract void update(Record...records);
-
-    @Override
-    public abstract void update(Record record);
-
-    public void doUpdate(Record record) throws IOException {
-        long currentLocation = writer().getFilePointer();
-        writer().seek(record.getLocation());
-        record.write(writer());
-        writer().seek(currentLocation);
-    }
-
-
-    public void doUpdate(Record...records) throws IOException {
-        long currentLocation = writer().getFilePointer();
-        Arrays.sort(records);
-        for (Record record : records) {
-            writer().seek(record.getLocation());
-            record.write(writer());
-        }
-        writer().seek(currentLocation);
-    }
-
     private RandomAccessFile getWriter() {
         return writer;
     }
@@ -21,7 +21,6 @@ import com.alok.diskmap.Record;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class BlockingDiskIO extends BaseDiskIO {
@@ -39,8 +38,8 @@ public class BlockingDiskIO extends BaseDiskIO {
     }
 
     @Override
-    public Record lookup(long location) {
-        return doLookup(location);
+    public Record lookup(long location, int length) {
+        return doLookup(location, length);
     }
 
     @Override
@@ -51,38 +50,4 @@ public class BlockingDiskIO extends BaseDiskIO {
             throw newRuntimeException(e);
         }
     }
-
-
-    private void flush() {
-        if(System.currentTimeMillis() - this.getLastFlush() >= getConfig().getFlushInterval()){
-            doFlush();
-        }
-    }
-
-    @Override
-    public void vacuum(RecordFilter filter) throws Exception {
-        doVacuum(filter);
-    }
-
-    @Override
-    public void update(Record record) {
-       try {
-           doUpdate(record);
-           flush();
-       } catch (IOException e) {
-           logger.log(Level.SEVERE, e.getMessage(), e);
-       }
-    }
-
-    @Override
-    public void update(Record...records) {
-        try {
-            doUpdate(records);
-            flush();
-        } catch (IOException e) {
-            logger.log(Level.SEVERE, e.getMessage(), e);
-        }
-    }
-
-
 }
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2009 Alok Singh
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.alok.diskmap.io;
+
+import java.io.File;
+
+/**
+ * Thrown while scanning a data file when the record at {@link #getLocation()} is incomplete or fails its
+ * checksum, typically the tail of a write interrupted by a crash. Nothing at or after that location can be trusted.
+ */
+public class CorruptRecordException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final long location;
+
+    public CorruptRecordException(File file, long location, String reason) {
+        super(String.format("%s has a corrupt record at %d: %s", file, location, reason));
+        this.location = location;
+    }
+
+    public long getLocation() {
+        return location;
+    }
+}
@@ -18,27 +18,78 @@ package com.alok.diskmap.io;
 
 import com.alok.diskmap.Record;
 
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+
 public interface DiskIO extends Iterable<Record> {
 
+    /**
+     * Iterates over the records stored at or after <code>location</code>, which must be the start of a record
+     * (0 stands for the first record). Records are checked as they are read, the iteration throws a
+     * {@link CorruptRecordException} at the first one that is incomplete or fails its checksum.
+     */
+    Iterator<Record> iterator(long location);
+
+    /**
+     * Same as {@link #iterator(long)}, stopping at <code>end</code>. Records appended while the iteration is in
+     * progress are left out when <code>end</code> is the size of the file at the start, they may be incomplete.
+     */
+    Iterator<Record> iterator(long location, long end);
+
     Record lookup(long location);
 
-    long write(Record r);
+    /**
+     * Reads the record at <code>location</code> with a single read when its <code>length</code> is known, 0 stands
+     * for an unknown length.
+     */
+    Record lookup(long location, int length);
+
+    /**
+     * Reads the records at <code>locations</code>, given in ascending order with their lengths as for
+     * {@link #lookup(long, int)}. Records of known length that lie close to each other are fetched with one read.
+     */
+    Record[] lookup(long[] locations, int[] lengths);
+
+    /**
+     * Asynchronous {@link #lookup(long, int)}. Readers without a queue of their own complete the future before
+     * returning it.
+     */
+    CompletableFuture<Record> lookupAsync(long location, int length);
 
-    void update(Record r);
+    long write(Record r);
 
-    void update(Record...rs);
+    /**
+     * Appends <code>records</code> back to back with large sequential writes.
+     *
+     * @return the location of each record, in the order given.
+     */
+    long[] write(Record... records);
 
     long size();
 
-    void close();
+    /**
+     * Sequence number of the latest write, to be passed to {@link #sync(long)}.
+     */
+    long sequence();
 
-    void vacuum(RecordFilter filter) throws Exception;
+    /**
+     * Makes the writes up to <code>sequence</code> durable as required by the configured
+     * {@link com.alok.diskmap.Configuration.Durability}. Must not be called while holding a lock writers need,
+     * callers waiting for the same sync are meant to pile up here.
+     */
+    void sync(long sequence);
 
-    void clear();
+    /**
+     * Forces every write made so far to disk, whatever the configured durability.
+     */
+    void force();
 
-    public interface RecordFilter{
-        public boolean accept(Record r);
+    void close();
+
+    /**
+     * Cuts the file at <code>length</code>, used to drop a corrupt tail found while iterating.
+     */
+    void truncate(long length);
 
-        void update(Record r, long newLocation);
-    }
+    void clear();
 }
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2009 Alok Singh
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.alok.diskmap.io;
+
+import com.alok.diskmap.Configuration;
+import com.alok.diskmap.Record;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Serves lookups from read only mappings of the data file. The file is mapped in fixed size segments, each
+ * segment is mapped once and the last one is remapped when the file grows past it, so a lookup is normally
+ * just a decode from memory without taking a lock or making a system call. Records that straddle two segments
+ * are read through the file instead.
+ */
+public class MappedDiskIO extends BaseDiskIO {
+    private static final ByteBuffer[] NONE = new ByteBuffer[0];
+    private final int segmentSize;
+    private volatile ByteBuffer[] segments = NONE;
+
+    public MappedDiskIO(Configuration config) {
+        this(config, null);
+    }
+
+    public MappedDiskIO(Configuration config, File f) {
+        super(config, f);
+        this.segmentSize = config.getMappedSegmentSize();
+    }
+
+    @Override
+    public Record lookup(long location, int length) {
+        int index = (int) (location / segmentSize);
+        int offset = (int) (location % segmentSize);
+        int format = format();
+        ByteBuffer segment = segment(index, offset + (length > 0 ? length : format == Record.V2 ? Record.V2_MIN_HEADER_SIZE : Record.HEADER_SIZE));
+        if (segment == null) {
+            return doLookup(location, length);
+        }
+        if (length <= 0) {
+            length = Record.length(segment, offset, format);
+        }
+        //A record cut by the end of the mapping or of the segment is rare enough to be read from the file, with
+        //its length when it is known so that the header is not read on its own first
+        if (length < 0 || offset + length > segmentSize) {
+            return doLookup(location, Math.max(length, 0));
+        }
+        if (offset + length > segment.limit()) {
+            segment = segment(index, offset + length);
+        }
+        try {
+            ByteBuffer view = segment.duplicate();
+            view.position(offset);
+            Record r = new Record();
+            r.read(view, format);
+            r.setLocation(location);
+            return r;
+        } catch (IOException e) {
+            throw newRuntimeException(e);
+        }
+    }
+
+    /**
+     * Lookups are decoded straight from the mappings, there are no reads to coalesce.
+     */
+    @Override
+    public Record[] lookup(long[] locations, int[] lengths) {
+        Record[] records = new Record[locations.length];
+        for (int i = 0; i < locations.length; i++) {
+            records[i] = lookup(locations[i], lengths[i]);
+        }
+        return records;
+    }
+
+    /**
+     * @return the segment <code>index</code> mapped at least up to <code>limit</code>, or null when that range
+     *         crosses into the next segment.
+     */
+    private ByteBuffer segment(int index, int limit) {
+        if (limit > segmentSize) {
+            return null;
+        }
+        ByteBuffer[] current = segments;
+        if (index < current.length && current[index] != null && current[index].limit() >= limit) {
+            return current[index];
+        }
+        return remap(index, limit);
+    }
+
+    private synchronized ByteBuffer remap(int index, int limit) {
+        ByteBuffer[] current = segments;
+        if (index < current.length && current[index] != null && current[index].limit() >= limit) {
+            return current[index];
+        }
+        try {
+            FileChannel channel = reader().getChannel();
+            long start = (long) index * segmentSize;
+            long size = Math.min(segmentSize, channel.size() - start);
+            if (size < limit) {
+                throw new IOException(String.format("Location %d is past the end of %s", start + limit, file));
+            }
+            ByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            ByteBuffer[] updated = new ByteBuffer[Math.max(current.length, index + 1)];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[index] = segment;
+            segments = updated;
+            return segment;
+        } catch (IOException e) {
+            throw newRuntimeException(e);
+        }
+    }
+
+    private synchronized void unmap() {
+        //Mappings are released once collected, there is no portable way to unmap them eagerly
+        segments = NONE;
+    }
+
+    @Override
+    public long write(Record r) {
+        try {
+            return doWrite(r, writer());
+        } catch (IOException e) {
+            throw newRuntimeException(e);
+        }
+    }
+
+    @Override
+    public void clear() {
+        unmap();
+        super.clear();
+    }
+
+    @Override
+    public void truncate(long length) {
+        unmap();
+        super.truncate(length);
+    }
+
+    @Override
+    public void close() {
+        unmap();
+        super.close();
+    }
+}
@@ -19,6 +19,7 @@ package com.alok.diskmap.io;
 import com.alok.diskmap.Configuration;
 import com.alok.diskmap.Record;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -28,20 +29,41 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 public class NonBlockingDiskIO extends BaseDiskIO implements DiskIO{
     private final BlockingQueue<ReadFuture> readQueue;
-    private final Thread readerThread;
-    private final ReaderTask readerTask;
+    private final List<ReaderTask> readerTasks;
 
-    public NonBlockingDiskIO(Configuration config){
-        super(config, null);
+    public NonBlockingDiskIO(Configuration config) {
+        this(config, null);
+    }
+
+    public NonBlockingDiskIO(Configuration config, File f) {
+        super(config, f);
         this.readQueue = new LinkedBlockingQueue<ReadFuture>();
-        this.readerTask = new ReaderTask(readQueue);
-        this.readerThread = new Thread(readerTask, "ReaderThread-" + config.getNumber());
-        this.readerThread.start();
+        int poolSize = Math.max(1, config.getReaderPoolSize());
+        this.readerTasks = new ArrayList<ReaderTask>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            ReaderTask readerTask = new ReaderTask(readQueue);
+            Thread readerThread = new Thread(readerTask, "ReaderThread-" + config.getNumber() + "-" + i);
+            readerThread.setDaemon(true);
+            readerThread.start();
+            readerTasks.add(readerTask);
+        }
     }
 
+    /**
+     * Queues the read for the reader threads, which sort the reads waiting in the queue by location.
+     */
     @Override
-    public Record lookup(long location) {
-        ReadFuture task = new ReadFuture(location);
+    public CompletableFuture<Record> lookupAsync(long location, int length) {
+        ReadFuture task = new ReadFuture(location, length);
+        if (!readQueue.offer(task)) {
+            task.fail(new IllegalStateException("Read queue is full"));
+        }
+        return task.result();
+    }
+
+    @Override
+    public Record lookup(long location, int length) {
+        ReadFuture task = new ReadFuture(location, length);
         try {
             this.readQueue.put(task);
             return task.get();
@@ -61,32 +83,11 @@ public class NonBlockingDiskIO extends BaseDiskIO implements DiskIO{
         }
     }
 
-    @Override
-    public void vacuum(RecordFilter filter) throws Exception {
-        doVacuum(filter);
-    }
-
-    @Override
-    public void update(Record record) {
-        try {
-            doUpdate(record);
-        } catch (IOException e) {
-            throw newRuntimeException(e);
-        }
-    }
-
-    @Override
-    public void update(Record...records) {
-        try {
-            doUpdate(records);
-        } catch (IOException e) {
-            throw newRuntimeException(e);
-        }
-    }
-
     @Override
     public void close(){
-        readerTask.stop();
+        for (ReaderTask readerTask : readerTasks) {
+            readerTask.stop();
+        }
         super.close();
     }
 
@@ -110,8 +111,11 @@ public class NonBlockingDiskIO extends BaseDiskIO implements DiskIO{
                     readQueue.drainTo(readFutures);
                     Collections.sort(readFutures);
                     for (ReadFuture future : readFutures) {
-                        Record record = doLookup(future.getLocation());
-                        future.complete(record);
+                        try {
+                            future.complete(doPositionalLookup(future.getLocation(), future.length));
+                        } catch (RuntimeException e) {
+                            future.fail(e);
+                        }
                     }
                 } catch (InterruptedException e) {
                     e.printStackTrace();
@@ -128,12 +132,19 @@ public class NonBlockingDiskIO extends BaseDiskIO implements DiskIO{
         }
     }
 
+    /**
+     * Lookup waiting in the read queue, completes {@link #result()} once read.
+     */
     public class ReadFuture implements Future<Record>, Comparable<ReadFuture>{
         private final long location;
-        private Record r;
-        private final AtomicBoolean isDone = new AtomicBoolean(false);
+        private final int length;
+        private final CompletableFuture<Record> result = new CompletableFuture<Record>();
         public ReadFuture(long location){
+            this(location, 0);
+        }
+        public ReadFuture(long location, int length){
             this.location = location;
+            this.length = length;
         }
         @Override
         public boolean cancel(boolean mayInterruptIfRunning) {
@@ -147,33 +158,32 @@ public class NonBlockingDiskIO extends BaseDiskIO implements DiskIO{
 
         @Override
         public boolean isDone() {
-            return isDone.get();
+            return result.isDone();
         }
 
         @Override
         public Record get() throws InterruptedException, ExecutionException {
-            synchronized (isDone){
-                while(!isDone.get()){
-                    isDone.wait();
-                }
-                if(isDone()){
-                    return r;
-                }
-            }
-            throw new ExecutionException(new RuntimeException("Did not complete the lookup"));
+            return result.get();
         }
 
         public void complete(Record r){
-            this.r = r;
-            synchronized (isDone){
-                isDone.set(true);
-                isDone.notifyAll();
-            }
+            result.complete(r);
+        }
+
+        public void fail(Throwable error){
+            result.completeExceptionally(error);
         }
 
         @Override
         public Record get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-            return get();
+            return result.get(timeout, unit);
+        }
+
+        /**
+         * Completed by the reader thread, dependent stages not run asynchronously run on that thread.
+         */
+        public CompletableFuture<Record> result() {
+            return result;
         }
 
         public long getLocation() {
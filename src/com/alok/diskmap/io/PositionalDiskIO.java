@@ -0,0 +1,52 @@
+/*
+ * Copyright 2009 Alok Singh
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.alok.diskmap.io;
+
+import com.alok.diskmap.Configuration;
+import com.alok.diskmap.Record;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Lookups are positional reads made directly from the calling thread. They neither lock nor move the file
+ * position, so concurrent gets on the same page proceed in parallel and keep the device queue full.
+ */
+public class PositionalDiskIO extends BaseDiskIO {
+
+    public PositionalDiskIO(Configuration config) {
+        this(config, null);
+    }
+
+    public PositionalDiskIO(Configuration config, File f) {
+        super(config, f);
+    }
+
+    @Override
+    public Record lookup(long location, int length) {
+        return doPositionalLookup(location, length);
+    }
+
+    @Override
+    public long write(Record r) {
+        try {
+            return doWrite(r, writer());
+        } catch (IOException e) {
+            throw newRuntimeException(e);
+        }
+    }
+}
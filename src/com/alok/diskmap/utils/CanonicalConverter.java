@@ -0,0 +1,24 @@
+/*
+ * Copyright 2009 Alok Singh
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.alok.diskmap.utils;
+
+/**
+ * Converter whose encoding is one to one: equal objects are always encoded to the same bytes and different
+ * objects to different bytes. Keys encoded by such a converter are compared on their bytes alone.
+ */
+public interface CanonicalConverter extends ObjectConverter {
+}
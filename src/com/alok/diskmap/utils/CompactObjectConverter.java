@@ -0,0 +1,315 @@
+/*
+ * Copyright 2009 Alok Singh
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.alok.diskmap.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Encodes the common JDK types in a few bytes behind a one byte tag, without reflection: String (UTF-8), boxed
+ * primitives, byte[], UUID, and ArrayList, HashSet, LinkedHashSet, HashMap and LinkedHashMap holding such
+ * objects. Anything else is written with Java serialization. Java serialization streams start with 0xACED, a
+ * prefix no tag uses, so the buffers written by {@link DefaultObjectConverter} are read as well.
+ */
+public class CompactObjectConverter implements ObjectConverter {
+    private static final int NULL = 0;
+    private static final int STRING = 1;
+    private static final int INTEGER = 2;
+    private static final int LONG = 3;
+    private static final int SHORT = 4;
+    private static final int BYTE = 5;
+    private static final int CHARACTER = 6;
+    private static final int TRUE = 7;
+    private static final int FALSE = 8;
+    private static final int FLOAT = 9;
+    private static final int DOUBLE = 10;
+    private static final int BYTES = 11;
+    private static final int UUID_ = 12;
+    private static final int ARRAY_LIST = 13;
+    private static final int HASH_SET = 14;
+    private static final int LINKED_HASH_SET = 15;
+    private static final int HASH_MAP = 16;
+    private static final int LINKED_HASH_MAP = 17;
+    private static final int JAVA_MAGIC_0 = 0xAC;
+    private static final int JAVA_MAGIC_1 = 0xED;
+
+    private final ObjectConverter fallback = new DefaultObjectConverter();
+
+    /**
+     * True if <code>buffer</code> holds a Java serialization stream, such as those {@link DefaultObjectConverter}
+     * writes.
+     */
+    public static boolean isJavaSerialized(byte[] buffer) {
+        return buffer.length >= 2 && (buffer[0] & 0xFF) == JAVA_MAGIC_0 && (buffer[1] & 0xFF) == JAVA_MAGIC_1;
+    }
+
+    @Override
+    public byte[] serialize(Serializable object) throws Exception {
+        Output out = new Output();
+        if (!write(out, object)) {
+            return fallback.serialize(object);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T deserialize(byte[] buffer) {
+        if (isJavaSerialized(buffer)) {
+            return fallback.<T>deserialize(buffer);
+        }
+        Input in = new Input(buffer);
+        Object object = read(in);
+        if (in.position != buffer.length) {
+            throw new RuntimeException(String.format("%d trailing bytes after the encoded object", buffer.length - in.position));
+        }
+        return (T) object;
+    }
+
+    /**
+     * @return false, with <code>out</code> partly written, if <code>object</code> or one of its elements has no
+     *         compact encoding.
+     */
+    private boolean write(Output out, Object object) {
+        if (object == null) {
+            out.write(NULL);
+            return true;
+        }
+        Class<?> type = object.getClass();
+        if (type == String.class) {
+            String s = (String) object;
+            if (!isWellFormed(s)) {
+                //Unpaired surrogates do not survive UTF-8
+                return false;
+            }
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.write(STRING);
+            out.writeVarint(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        } else if (type == Integer.class) {
+            out.write(INTEGER);
+            out.writeVarint(zigzag((Integer) object));
+        } else if (type == Long.class) {
+            out.write(LONG);
+            out.writeVarint(zigzag((Long) object));
+        } else if (type == Short.class) {
+            out.write(SHORT);
+            out.writeVarint(zigzag((Short) object));
+        } else if (type == Byte.class) {
+            out.write(BYTE);
+            out.write((Byte) object);
+        } else if (type == Character.class) {
+            out.write(CHARACTER);
+            out.writeVarint((Character) object);
+        } else if (type == Boolean.class) {
+            out.write((Boolean) object ? TRUE : FALSE);
+        } else if (type == Float.class) {
+            out.write(FLOAT);
+            out.writeFixed(Float.floatToIntBits((Float) object), 4);
+        } else if (type == Double.class) {
+            out.write(DOUBLE);
+            out.writeFixed(Double.doubleToLongBits((Double) object), 8);
+        } else if (type == byte[].class) {
+            byte[] bytes = (byte[]) object;
+            out.write(BYTES);
+            out.writeVarint(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        } else if (type == UUID.class) {
+            UUID uuid = (UUID) object;
+            out.write(UUID_);
+            out.writeFixed(uuid.getMostSignificantBits(), 8);
+            out.writeFixed(uuid.getLeastSignificantBits(), 8);
+        } else if (type == ArrayList.class || type == HashSet.class || type == LinkedHashSet.class) {
+            Collection<?> elements = (Collection<?>) object;
+            out.write(type == ArrayList.class ? ARRAY_LIST : type == HashSet.class ? HASH_SET : LINKED_HASH_SET);
+            out.writeVarint(elements.size());
+            for (Object element : elements) {
+                if (!write(out, element)) {
+                    return false;
+                }
+            }
+        } else if (type == HashMap.class || type == LinkedHashMap.class) {
+            Map<?, ?> entries = (Map<?, ?>) object;
+            out.write(type == HashMap.class ? HASH_MAP : LINKED_HASH_MAP);
+            out.writeVarint(entries.size());
+            for (Map.Entry<?, ?> entry : entries.entrySet()) {
+                if (!write(out, entry.getKey()) || !write(out, entry.getValue())) {
+                    return false;
+                }
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private Object read(Input in) {
+        int tag = in.read();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING: {
+                int length = in.readLength();
+                String s = new String(in.buffer, in.position, length, StandardCharsets.UTF_8);
+                in.position += length;
+                return s;
+            }
+            case INTEGER:
+                return (int) unzigzag(in.readVarint());
+            case LONG:
+                return unzigzag(in.readVarint());
+            case SHORT:
+                return (short) unzigzag(in.readVarint());
+            case BYTE:
+                return (byte) in.read();
+            case CHARACTER:
+                return (char) in.readVarint();
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case FLOAT:
+                return Float.intBitsToFloat((int) in.readFixed(4));
+            case DOUBLE:
+                return Double.longBitsToDouble(in.readFixed(8));
+            case BYTES: {
+                int length = in.readLength();
+                byte[] bytes = Arrays.copyOfRange(in.buffer, in.position, in.position + length);
+                in.position += length;
+                return bytes;
+            }
+            case UUID_:
+                return new UUID(in.readFixed(8), in.readFixed(8));
+            case ARRAY_LIST:
+            case HASH_SET:
+            case LINKED_HASH_SET: {
+                int size = in.readLength();
+                Collection<Object> elements = tag == ARRAY_LIST ? new ArrayList<Object>(size)
+                        : tag == HASH_SET ? new HashSet<Object>(capacity(size)) : new LinkedHashSet<Object>(capacity(size));
+                for (int i = 0; i < size; i++) {
+                    elements.add(read(in));
+                }
+                return elements;
+            }
+            case HASH_MAP:
+            case LINKED_HASH_MAP: {
+                int size = in.readLength();
+                Map<Object, Object> entries = tag == HASH_MAP ? new HashMap<Object, Object>(capacity(size)) : new LinkedHashMap<Object, Object>(capacity(size));
+                for (int i = 0; i < size; i++) {
+                    Object key = read(in);
+                    entries.put(key, read(in));
+                }
+                return entries;
+            }
+            default:
+                throw new RuntimeException(String.format("Unknown type tag %d at %d", tag, in.position - 1));
+        }
+    }
+
+    private static boolean isWellFormed(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int capacity(int size) {
+        return Math.max(16, (int) (size / 0.75f) + 1);
+    }
+
+    private static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    private static long unzigzag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static final class Output extends ByteArrayOutputStream {
+        private Output() {
+            super(32);
+        }
+
+        private void writeVarint(long n) {
+            while ((n & ~0x7FL) != 0) {
+                write((int) ((n & 0x7F) | 0x80));
+                n >>>= 7;
+            }
+            write((int) n);
+        }
+
+        private void writeFixed(long n, int bytes) {
+            for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+                write((int) (n >>> shift));
+            }
+        }
+    }
+
+    private static final class Input {
+        private final byte[] buffer;
+        private int position;
+
+        private Input(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        private int read() {
+            if (position >= buffer.length) {
+                throw new RuntimeException("Unexpected end of the encoded object");
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        private long readVarint() {
+            long n = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = read();
+                n |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return n;
+                }
+            }
+            throw new RuntimeException("Malformed varint at " + position);
+        }
+
+        /**
+         * A length or a size, checked against the bytes left so that a corrupt one fails fast.
+         */
+        private int readLength() {
+            long length = readVarint();
+            if (length < 0 || length > buffer.length - position) {
+                throw new RuntimeException(String.format("Invalid length %d at %d", length, position));
+            }
+            return (int) length;
+        }
+
+        private long readFixed(int bytes) {
+            long n = 0;
+            for (int i = 0; i < bytes; i++) {
+                n = (n << 8) | read();
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2009 Alok Singh
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.alok.diskmap.utils;
+
+import java.io.Serializable;
+
+/**
+ * Encodes Integer keys in 4 bytes, big endian.
+ */
+public class IntKeyConverter implements CanonicalConverter {
+    @Override
+    public byte[] serialize(Serializable object) throws Exception {
+        return encode((Integer) object);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T deserialize(byte[] buffer) {
+        if (buffer.length != 4) {
+            throw new RuntimeException(String.format("An int key takes 4 bytes, not %d", buffer.length));
+        }
+        int n = 0;
+        for (byte b : buffer) {
+            n = (n << 8) | (b & 0xFF);
+        }
+        return (T) Integer.valueOf(n);
+    }
+
+    private static byte[] encode(int n) {
+        byte[] b = new byte[4];
+        encode(n, b);
+        return b;
+    }
+
+    /**
+     * Writes the 4 bytes of <code>n</code> at the start of <code>buffer</code>, for callers reusing a buffer.
+     */
+    public static void encode(int n, byte[] buffer) {
+        for (int i = 3; i >= 0; i--) {
+            buffer[i] = (byte) n;
+            n >>>= 8;
+        }
+    }
+}
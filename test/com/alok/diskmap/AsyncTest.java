@@ -0,0 +1,136 @@
+/*
+ * Copyright 2009 Alok Singh
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.alok.diskmap;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+public class AsyncTest extends TestCase {
+    private static final String TMP_DIR = "/tmp/tests/async";
+
+    public void setUp(){
+        clean(new File(TMP_DIR));
+    }
+
+    public void testGetAsync() throws Exception{
+        for (Configuration.ReaderMode mode : Configuration.ReaderMode.values()) {
+            File dir = new File(TMP_DIR, mode.name());
+            DiskBackedMap<Serializable, Serializable> map = new DiskBackedMap<Serializable, Serializable>(new Configuration()
+                    .setDataDir(dir).setPageCount(4).setReaderMode(mode));
+            int count = 5000;
+            for(int i = 0; i < count; i++){
+                map.put("Key" + i, "Value" + i);
+            }
+            //All in flight at once
+            List<CompletableFuture<Serializable>> values = new ArrayList<CompletableFuture<Serializable>>();
+            for(int i = 0; i < count + 100; i++){
+                values.add(map.getAsync("Key" + i));
+            }
+            for(int i = 0; i < count + 100; i++){
+                assertEquals(i < count ? "Value" + i : null, values.get(i).get());
+            }
+            map.close();
+        }
+    }
+
+    public void testWriteOrder() throws Exception{
+        DiskBackedMap<Serializable, Serializable> map = new DiskBackedMap<Serializable, Serializable>(new Configuration()
+                .setDataDir(new File(TMP_DIR)).setPageCount(4));
+        int count = 1000;
+        List<CompletableFuture<Serializable>> removed = new ArrayList<CompletableFuture<Serializable>>();
+        for(int i = 0; i < count; i++){
+            map.putAsync("Key" + i, "Value" + i);
+            map.putAsync("Key" + i, "NewValue" + i);
+            if(i % 2 == 0){
+                removed.add(map.removeAsync("Key" + i));
+            }
+        }
+        for(int i = 0; i < count; i += 2){
+            assertEquals("NewValue" + i, removed.get(i / 2).get());
+        }
+        CompletableFuture<Serializable> last = map.putAsync("Last", "Value");
+        last.get();
+        for(int i = 0; i < count; i++){
+            assertEquals(i % 2 == 0 ? null : "NewValue" + i, map.getAsync("Key" + i).get());
+        }
+        map.putAsync("Pending", "Value");
+        //Waits for the writes in flight
+        map.close();
+        map = new DiskBackedMap<Serializable, Serializable>(new Configuration().setDataDir(new File(TMP_DIR)));
+        assertEquals("Value", map.get("Pending"));
+        assertEquals(count / 2 + 2, map.size());
+        map.close();
+    }
+
+    public void testGetAllBehindQueuedWrite() throws Exception{
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final DiskBackedMap<Serializable, Serializable> map = new DiskBackedMap<Serializable, Serializable>(new Configuration()
+                .setDataDir(new File(TMP_DIR)).setPageCount(4).setAsyncExecutor(executor));
+        final List<Serializable> keys = new ArrayList<Serializable>();
+        for(int i = 0; i < 100; i++){
+            map.put("Key" + i, "Value" + i);
+            keys.add("Key" + i);
+        }
+        //Holds the only thread of the executor until getAll holds its stripe locks, the write waits behind it
+        final CountDownLatch blocked = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        CompletableFuture<Serializable> write = map.putAsync("Key0", "NewValue0");
+        FutureTask<Map<Serializable, Serializable>> values = new FutureTask<Map<Serializable, Serializable>>(new Callable<Map<Serializable, Serializable>>() {
+            public Map<Serializable, Serializable> call() {
+                return map.getAll(keys);
+            }
+        });
+        new Thread(values).start();
+        Thread.sleep(100);
+        blocked.countDown();
+        assertEquals(100, values.get(10, TimeUnit.SECONDS).size());
+        write.get(10, TimeUnit.SECONDS);
+        assertEquals("NewValue0", map.get("Key0"));
+        map.close();
+        executor.shutdown();
+    }
+
+    private void clean(File dir) {
+        dir.mkdirs();
+        for (File file : dir.listFiles()) {
+            if (file.isDirectory()) {
+                clean(file);
+            }
+            file.delete();
+        }
+    }
+}
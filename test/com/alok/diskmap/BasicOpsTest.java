@@ -16,31 +16,40 @@
 
 package com.alok.diskmap;
 
+import com.alok.diskmap.utils.DefaultObjectConverter;
+import com.alok.diskmap.utils.ObjectConverter;
 import junit.framework.TestCase;
 
 import java.io.File;
 import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class BasicOpsTest extends TestCase {
     private static final String TMP_DIR = "/tmp/tests";
 //    private static final String TMP_DIR = "/home/alok/sw_dev/tmp/tests";
 
     public void setUp(){
-        File f = new File(TMP_DIR);
-        if(!f.exists()){
-            f.mkdirs();
-        }
+        //Maps left by a previous run keep their page layout, start from scratch
+        clean(new File(TMP_DIR));
     }
-    public void testSimplePut(){
+    public void testSimplePut() throws Exception{
         String keyS = "test";
         String value = "valueString";
         String value2 = "valueString2";
-        Map<Serializable, Serializable> map = getNBMap();
+        DiskBackedMap<Serializable, Serializable> map = getNBMap();
         map.put(keyS, value);
         assertEquals(value, map.get(keyS));
         map.put(keyS, value2);
         assertEquals(value2, map.get(keyS));
+        map.close();
     }
 
     public void testDelete() throws Exception{
@@ -55,28 +64,351 @@ public class BasicOpsTest extends TestCase {
                 map.remove("Key" + i);
             }
         }
-        assertEquals(originalSize, map.sizeOnDisk());
+        //Removes append tombstones
+        assertTrue(originalSize < map.sizeOnDisk());
         map.gc();
         assertTrue(originalSize > map.sizeOnDisk());
+        map.close();
         DiskBackedMap<Serializable, Serializable> map2 = getMap();
         for(int i = 0; i < count; i++){
             if( i % 5 != 0){
                 assertEquals("Value" + i, map2.get("Key" + i));
             }
         }
+        map2.close();
+    }
+
+    public void testMappedReader() throws Exception{
+        File dir = new File(TMP_DIR, "mapped");
+        dir.mkdirs();
+        assertReadWrite(new Configuration().setDataDir(dir).setReaderMode(Configuration.ReaderMode.MAPPED).setMappedSegmentSize(4096));
+    }
+
+    public void testPositionalReader() throws Exception{
+        File dir = new File(TMP_DIR, "positional");
+        dir.mkdirs();
+        assertReadWrite(new Configuration().setDataDir(dir).setReaderMode(Configuration.ReaderMode.POSITIONAL));
+    }
+
+    public void testSyncDurability() throws Exception{
+        File dir = new File(TMP_DIR, "sync");
+        dir.mkdirs();
+        assertReadWrite(new Configuration().setDataDir(dir).setDurability(Configuration.Durability.SYNC));
+    }
+
+    private void assertReadWrite(Configuration cfg) throws Exception {
+        DiskBackedMap<Serializable, Serializable> map = new DiskBackedMap<Serializable, Serializable>(cfg);
+        map.clear();
+        int count = 5000;
+        for(int i = 0; i < count; i++){
+            map.put("Key" + i, "Value" + i);
+        }
+        for(int i = 0; i < count; i++){
+            assertEquals("Value" + i, map.get("Key" + i));
+        }
+        for(int i = 0; i < count; i += 2){
+            map.put("Key" + i, "NewValue" + i);
+        }
+        map.gc();
+        for(int i = 0; i < count; i++){
+            assertEquals((i % 2 == 0 ? "NewValue" : "Value") + i, map.get("Key" + i));
+        }
+        map.close();
+    }
+
+    public void testBulkLoad() throws Exception{
+        File dir = new File(TMP_DIR, "bulk");
+        dir.mkdirs();
+        DiskBackedMap<Serializable, Serializable> map = new DiskBackedMap<Serializable, Serializable>(new Configuration().setDataDir(dir).setBulkLoadBatchSize(3000));
+        map.clear();
+        int count = 10000;
+        Map<Serializable, Serializable> entries = new LinkedHashMap<Serializable, Serializable>();
+        for(int i = 0; i < count; i++){
+            entries.put("Key" + i, "Value" + i);
+        }
+        map.bulkLoad(entries.entrySet().iterator(), true);
+        assertEquals(count, map.size());
+        try{
+            map.bulkLoad(entries.entrySet().iterator(), true);
+            fail("Loading into a non empty map must be refused");
+        }catch(IllegalStateException expected){
+        }
+        Map<Serializable, Serializable> updates = new HashMap<Serializable, Serializable>();
+        for(int i = 0; i < count + 1000; i += 2){
+            updates.put("Key" + i, "NewValue" + i);
+        }
+        map.putAll(updates);
+        assertEquals(count + 500, map.size());
+        map.close();
+
+        map = new DiskBackedMap<Serializable, Serializable>(new Configuration().setDataDir(dir));
+        assertEquals(count + 500, map.size());
+        for(int i = 0; i < count + 1000; i++){
+            if(i % 2 == 0){
+                assertEquals("NewValue" + i, map.get("Key" + i));
+            }else{
+                assertEquals(i < count ? "Value" + i : null, map.get("Key" + i));
+            }
+        }
+        map.close();
+    }
+
+    public void testRepartition() throws Exception{
+        File dir = new File(TMP_DIR, "repartition");
+        dir.mkdirs();
+        DiskBackedMap<Serializable, Serializable> map = new DiskBackedMap<Serializable, Serializable>(new Configuration().setDataDir(dir).setPageCount(4));
+        map.clear();
+        assertEquals(4, map.pageCount());
+        int count = 5000;
+        for(int i = 0; i < count; i++){
+            map.put("Key" + i, "Value" + i);
+        }
+        map.repartition(7);
+        for(int i = 0; i < count; i += 3){
+            map.put("Key" + i, "NewValue" + i);
+            map.remove("Key" + (i + 1));
+        }
+        while(map.isRepartitioning()){
+            Thread.sleep(10);
+        }
+        assertEquals(7, map.pageCount());
+        map.close();
+
+        map = new DiskBackedMap<Serializable, Serializable>(new Configuration().setDataDir(dir));
+        assertEquals(7, map.pageCount());
+        for(int i = 0; i < count; i++){
+            if(i % 3 == 0){
+                assertEquals("NewValue" + i, map.get("Key" + i));
+            }else if(i % 3 == 1){
+                assertNull(map.get("Key" + i));
+            }else{
+                assertEquals("Value" + i, map.get("Key" + i));
+            }
+        }
+        assertFalse(new File(dir, "0.dat").exists());
+        map.close();
+
+        //Repartitioned on open, the page count is the recorded one until it is done
+        map = new DiskBackedMap<Serializable, Serializable>(new Configuration().setDataDir(dir).setPageCount(4));
+        int pageCount = map.pageCount();
+        if(map.isRepartitioning()){
+            assertEquals(7, pageCount);
+        }
+        while(map.isRepartitioning()){
+            Thread.sleep(10);
+        }
+        assertEquals(4, map.pageCount());
+        assertEquals("Value2", map.get("Key2"));
+        map.close();
+        map = new DiskBackedMap<Serializable, Serializable>(new Configuration().setDataDir(dir));
+        assertEquals(4, map.pageCount());
+        map.close();
+    }
+
+    public void testGetAll() throws Exception{
+        for(Configuration.ReaderMode mode : Configuration.ReaderMode.values()){
+            File dir = new File(TMP_DIR, "getAll-" + mode.name());
+            dir.mkdirs();
+            DiskBackedMap<Serializable, Serializable> map = new DiskBackedMap<Serializable, Serializable>(new Configuration()
+                    .setDataDir(dir).setPageCount(4).setReaderMode(mode));
+            map.clear();
+            int count = 3000;
+            for(int i = 0; i < count; i++){
+                //Some values too large for their length to be kept in the index
+                map.put("Key" + i, i % 100 == 1 ? new byte[20000 + i] : "Value" + i);
+            }
+            for(int i = 0; i < count; i += 2){
+                map.put("Key" + i, "NewValue" + i);
+            }
+            List<Serializable> keys = new ArrayList<Serializable>();
+            for(int i = count + 10; i >= 0; i--){
+                keys.add("Key" + i);
+            }
+            keys.add("Key1");
+            Map<Serializable, Serializable> values = map.getAll(keys);
+            assertEquals(count, values.size());
+            assertEquals("Key" + (count - 1), values.keySet().iterator().next());
+            for(int i = 0; i < count; i++){
+                Serializable value = values.get("Key" + i);
+                if(i % 2 == 0){
+                    assertEquals("NewValue" + i, value);
+                }else if(i % 100 == 1){
+                    assertEquals(20000 + i, ((byte[]) value).length);
+                }else{
+                    assertEquals("Value" + i, value);
+                }
+            }
+            map.repartition(3);
+            assertEquals(values.keySet(), map.getAll(keys).keySet());
+            while(map.isRepartitioning()){
+                Thread.sleep(10);
+            }
+            map.close();
+        }
+    }
+
+    public void testConverters() throws Exception{
+        File dir = new File(TMP_DIR, "converters");
+        dir.mkdirs();
+        Configuration cfg = new Configuration().setDataDir(dir).setPageCount(2)
+                .setKeyConverter(new StringConverter("UTF-8")).setValueConverter(new StringConverter("UTF-16"));
+        DiskBackedMap<String, String> map = new DiskBackedMap<String, String>(cfg);
+        map.clear();
+        int count = 2000;
+        for(int i = 0; i < count; i++){
+            map.put("Key" + i, "Value" + i);
+        }
+        for(int i = 0; i < count; i += 2){
+            map.remove("Key" + i);
+        }
+        map.close();
+        map = new DiskBackedMap<String, String>(new Configuration(cfg));
+        assertEquals(count / 2, map.size());
+        for(int i = 0; i < count; i++){
+            assertEquals(i % 2 == 0 ? null : "Value" + i, map.get("Key" + i));
+        }
+        Set<String> keys = new HashSet<String>(map.keySet());
+        assertEquals(count / 2, keys.size());
+        assertTrue(keys.contains("Key1"));
+        map.close();
+    }
+
+    public void testRawBytes() throws Exception{
+        File dir = new File(TMP_DIR, "rawBytes");
+        dir.mkdirs();
+        //Compressed and cached, the bytes handed out must still be the encoded value and belong to the caller
+        Configuration cfg = new Configuration().setDataDir(dir).setPageCount(2)
+                .setCompression(Configuration.Compression.DEFLATE).setCompressionThreshold(64).setCacheSize(1024 * 1024);
+        ObjectConverter converter = cfg.getValueConverter();
+        DiskBackedMap<Serializable, Serializable> map = new DiskBackedMap<Serializable, Serializable>(cfg);
+        map.clear();
+        int count = 1000;
+        for(int i = 0; i < count; i++){
+            String value = i % 2 == 0 ? "Value" + i : repeat("Value" + i, 50);
+            map.putBytes("Key" + i, converter.serialize(value));
+        }
+        for(int i = 0; i < count; i++){
+            String value = i % 2 == 0 ? "Value" + i : repeat("Value" + i, 50);
+            assertEquals(value, map.get("Key" + i));
+            byte[] bytes = map.getBytes("Key" + i);
+            assertTrue(Arrays.equals(converter.serialize(value), bytes));
+            Arrays.fill(bytes, (byte) 0);
+            assertTrue(Arrays.equals(converter.serialize(value), map.getBytes("Key" + i)));
+        }
+        assertNull(map.getBytes("Missing"));
+        map.put("Key0", "Other");
+        assertTrue(Arrays.equals(converter.serialize("Other"), map.getBytes("Key0")));
+        map.close();
+    }
+
+    private String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < times; i++){
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    public void testJavaSerializedKeys() throws Exception{
+        File dir = new File(TMP_DIR, "javaKeys");
+        dir.mkdirs();
+        //As written before the compact encoding was the default
+        DiskBackedMap<Serializable, Serializable> map = new DiskBackedMap<Serializable, Serializable>(new Configuration()
+                .setDataDir(dir).setPageCount(2).setKeyConverter(new DefaultObjectConverter()).setValueConverter(new DefaultObjectConverter()));
+        map.clear();
+        int count = 1000;
+        for(int i = 0; i < count; i++){
+            map.put("Key" + i, "Value" + i);
+        }
+        map.close();
+
+        map = new DiskBackedMap<Serializable, Serializable>(new Configuration().setDataDir(dir));
+        for(int i = 0; i < count; i += 2){
+            map.put("Key" + i, "NewValue" + i);
+        }
+        assertEquals(count, map.size());
+        map.gc();
+        map.close();
+        map = new DiskBackedMap<Serializable, Serializable>(new Configuration().setDataDir(dir));
+        assertEquals(count, map.size());
+        for(int i = 0; i < count; i++){
+            assertEquals((i % 2 == 0 ? "NewValue" : "Value") + i, map.get("Key" + i));
+        }
+        map.close();
     }
 
-    public void testHashCollisions(){
+    private static class StringConverter implements ObjectConverter {
+        private final Charset charset;
+
+        private StringConverter(String charset) {
+            this.charset = Charset.forName(charset);
+        }
+
+        public byte[] serialize(Serializable object) throws Exception {
+            return ((String) object).getBytes(charset);
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T> T deserialize(byte[] buffer) {
+            return (T) new String(buffer, charset);
+        }
+    }
+
+    public void testKeysWithDifferentBytes() throws Exception{
+        HashSet<String> small = new HashSet<String>(16);
+        HashSet<String> large = new HashSet<String>(4096);
+        for(int i = 0; i < 10; i++){
+            small.add("Element" + i);
+            large.add("Element" + i);
+        }
+        assertEquals(small, large);
+        DiskBackedMap<Serializable, Serializable> map = getMap();
+        map.clear();
+        map.put(small, "value");
+        assertEquals("value", map.get(large));
+        map.put(large, "newValue");
+        assertEquals("newValue", map.get(small));
+        assertEquals(1, map.size());
+        map.close();
+    }
+
+    public void testHashCollisions() throws Exception{
         StringWithDuplicateHash str1 = new StringWithDuplicateHash("Foo", 1);
         StringWithDuplicateHash str2 = new StringWithDuplicateHash("Bar", 1);
         StringWithDuplicateHash str3 = new StringWithDuplicateHash("FooBar", 1);
-        Map<Serializable, Serializable> map = getNBMap();
+        DiskBackedMap<Serializable, Serializable> map = getNBMap();
         map.put(str1, str1.getValue());
         map.put(str2, str2.getValue());
         assertEquals(str1.getValue(), map.get(str1));
         assertEquals(str2.getValue(), map.get(str2));
         assertNull(map.get(str3));
         assertFalse(map.containsKey(str3));
+        map.close();
+    }
+
+    public void testCollidingStrings() throws Exception{
+        //"Aa" and "BB" have the same hash code, so do all the strings made of them
+        List<String> keys = new ArrayList<String>();
+        keys.add("");
+        for(int i = 0; i < 6; i++){
+            List<String> longer = new ArrayList<String>();
+            for (String key : keys) {
+                longer.add(key + "Aa");
+                longer.add(key + "BB");
+            }
+            keys = longer;
+        }
+        DiskBackedMap<Serializable, Serializable> map = getMap();
+        map.clear();
+        for (int i = 0; i < keys.size(); i += 2) {
+            map.put(keys.get(i), "value" + i);
+        }
+        map.close();
+        map = getMap();
+        for (int i = 0; i < keys.size(); i++) {
+            assertEquals(i % 2 == 0 ? "value" + i : null, map.get(keys.get(i)));
+        }
+        map.close();
     }
 
     public static class StringWithDuplicateHash implements Serializable{
@@ -124,6 +456,16 @@ public class BasicOpsTest extends TestCase {
         }
     }
 
+    private void clean(File dir) {
+        dir.mkdirs();
+        for (File file : dir.listFiles()) {
+            if (file.isDirectory()) {
+                clean(file);
+            }
+            file.delete();
+        }
+    }
+
     private DiskBackedMap<Serializable, Serializable> getMap() {
         return new DiskBackedMap<Serializable, Serializable>(new Configuration().setDataDir(new File(TMP_DIR)));
     }
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2009 Alok Singh
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.alok.diskmap;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.Serializable;
+
+public class CacheTest extends TestCase {
+    private static final String TMP_DIR = "/tmp/tests/cache";
+
+    public void setUp(){
+        clean(new File(TMP_DIR));
+    }
+
+    public void testInvalidation() throws Exception{
+        DiskBackedMap<Serializable, Serializable> map = new DiskBackedMap<Serializable, Serializable>(new Configuration()
+                .setDataDir(new File(TMP_DIR)).setPageCount(2).setCacheSize(1024 * 1024));
+        for(int i = 0; i < 100; i++){
+            map.put("Key" + i, "Value" + i);
+        }
+        for(int round = 0; round < 3; round++){
+            for(int i = 0; i < 100; i++){
+                assertEquals("Value" + i, map.get("Key" + i));
+            }
+        }
+        ValueCache.Stats stats = map.cacheStats();
+        assertEquals(100, stats.getMisses());
+        assertEquals(200, stats.getHits());
+        assertEquals(100, stats.getCount());
+
+        map.put("Key1", "NewValue1");
+        map.remove("Key2");
+        assertEquals("NewValue1", map.get("Key1"));
+        assertNull(map.get("Key2"));
+        assertEquals("Value3", map.get("Key3"));
+        map.clear();
+        assertNull(map.get("Key3"));
+        assertEquals(0, map.cacheStats().getCount());
+        map.close();
+    }
+
+    public void testScanResistance() throws Exception{
+        ValueCache<String> cache = new ValueCache<String>(64 * 1024);
+        byte[] value = new byte[100];
+        //Hot keys read over and over
+        for(int round = 0; round < 5; round++){
+            for(int i = 0; i < 100; i++){
+                String key = "hot" + i;
+                if(cache.get(key) == null){
+                    cache.put(key, value, 10, cache.stamp(key));
+                }
+            }
+        }
+        //Then a scan of many more keys than fit, read once each, while the hot keys are still read now and then
+        for(int i = 0; i < 10000; i++){
+            String key = "cold" + i;
+            if(cache.get(key) == null){
+                cache.put(key, value, 10, cache.stamp(key));
+            }
+            if(i % 10 == 0){
+                key = "hot" + (i / 10) % 100;
+                if(cache.get(key) == null){
+                    cache.put(key, value, 10, cache.stamp(key));
+                }
+            }
+        }
+        int hits = 0;
+        for(int i = 0; i < 100; i++){
+            if(cache.get("hot" + i) != null){
+                hits++;
+            }
+        }
+        assertTrue("Hot keys left: " + hits, hits >= 90);
+        assertTrue(cache.stats().getSize() <= 64 * 1024);
+    }
+
+    public void testStaleFill() throws Exception{
+        ValueCache<String> cache = new ValueCache<String>(64 * 1024);
+        long stamp = cache.stamp("key");
+        //The key is written between the read of the page and the fill of the cache
+        cache.invalidate("key");
+        cache.put("key", new byte[]{1}, 3, stamp);
+        assertNull(cache.get("key"));
+        cache.put("key", new byte[]{2}, 3, cache.stamp("key"));
+        assertEquals(2, cache.get("key")[0]);
+    }
+
+    private void clean(File dir) {
+        dir.mkdirs();
+        for (File file : dir.listFiles()) {
+            if (file.isDirectory()) {
+                clean(file);
+            }
+            file.delete();
+        }
+    }
+}
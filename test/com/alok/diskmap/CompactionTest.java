@@ -0,0 +1,127 @@
+/*
+ * Copyright 2009 Alok Singh
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.alok.diskmap;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.Serializable;
+
+public class CompactionTest extends TestCase {
+    private static final String TMP_DIR = "/tmp/tests/compaction";
+
+    public void setUp(){
+        clean(new File(TMP_DIR));
+    }
+
+    public void testBackgroundCompaction() throws Exception{
+        //Written without compaction so that the size measured below still holds all the garbage
+        DiskBackedMap<Serializable, Serializable> map = new DiskBackedMap<Serializable, Serializable>(new Configuration()
+                .setDataDir(new File(TMP_DIR)).setPageCount(2).setCompactionRatio(0));
+        int count = 1000;
+        for(int round = 0; round < 5; round++){
+            for(int i = 0; i < count; i++){
+                map.put("Key" + i, "Value" + round + "-" + i);
+            }
+        }
+        long size = map.sizeOnDisk();
+        map.close();
+        map = new DiskBackedMap<Serializable, Serializable>(new Configuration()
+                .setDataDir(new File(TMP_DIR)).setPageCount(2)
+                .setCompactionRatio(0.5).setCompactionMinSize(0).setCompactionCheckInterval(50));
+        long deadline = System.currentTimeMillis() + 10000;
+        while(map.sizeOnDisk() > size / 2 && System.currentTimeMillis() < deadline){
+            Thread.sleep(20);
+        }
+        assertTrue(map.sizeOnDisk() <= size / 2);
+        for(int i = 0; i < count; i++){
+            assertEquals("Value4-" + i, map.get("Key" + i));
+        }
+        map.close();
+    }
+
+    public void testWritesDuringCompaction() throws Exception{
+        final Page<String, String> page = newPage(TMP_DIR, 1);
+        final int count = 5000;
+        for(int i = 0; i < count; i++){
+            page.save("key" + i, "value" + i);
+            page.save("key" + i, "newValue" + i);
+        }
+        Thread compactor = new Thread(){
+            public void run() {
+                page.compact();
+            }
+        };
+        compactor.start();
+        for(int i = 0; i < count; i += 2){
+            page.save("key" + i, "latest" + i);
+            page.remove("key" + (i + 1));
+        }
+        compactor.join();
+        assertEquals(count / 2, page.keyCount());
+        assertFalse(new File(TMP_DIR, "1.cmp").exists());
+        page.close();
+
+        Page<String, String> reopened = newPage(TMP_DIR, 1);
+        assertEquals(count / 2, reopened.keyCount());
+        for(int i = 0; i < count; i += 2){
+            assertEquals("latest" + i, reopened.load("key" + i));
+            assertNull(reopened.load("key" + (i + 1)));
+        }
+        reopened.close();
+    }
+
+    public void testResumeInterruptedCompaction() throws Exception{
+        Page<String, String> page = newPage(TMP_DIR, 1);
+        for(int i = 0; i < 1000; i++){
+            page.save("key" + i, "value" + i);
+        }
+        page.close();
+        //Records written to the compacted file before the crash, they override those of the data file
+        Page<String, String> compacted = newPage(TMP_DIR, 2);
+        for(int i = 0; i < 1000; i += 2){
+            compacted.save("key" + i, "newValue" + i);
+        }
+        compacted.close();
+        assertTrue(new File(TMP_DIR, "2.dat").renameTo(new File(TMP_DIR, "1.cmp")));
+
+        page = newPage(TMP_DIR, 1);
+        assertTrue(page.needsCompaction());
+        assertEquals(1000, page.keyCount());
+        page.compact();
+        assertFalse(new File(TMP_DIR, "1.cmp").exists());
+        assertFalse(page.needsCompaction());
+        for(int i = 0; i < 1000; i++){
+            assertEquals((i % 2 == 0 ? "newValue" : "value") + i, page.load("key" + i));
+        }
+        page.close();
+    }
+
+    private Page<String, String> newPage(String dir, int number) {
+        return new Page<String, String>(new Configuration().setDataDir(new File(dir)).setNumber(number).setCompactionMinSize(0));
+    }
+
+    private void clean(File dir) {
+        dir.mkdirs();
+        for (File file : dir.listFiles()) {
+            if (file.isDirectory()) {
+                clean(file);
+            }
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2009 Alok Singh
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.alok.diskmap;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CompressionTest extends TestCase {
+    private static final String TMP_DIR = "/tmp/tests/compression";
+
+    public void setUp(){
+        clean(new File(TMP_DIR));
+    }
+
+    public void testCompressedValues() throws Exception{
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < 20; i++){
+            text.append("Value[ABCDEFGHIJKLMNOPQRSTUVWXYZ]");
+        }
+        Page<String, String> raw = newPage(new Configuration().setNumber(1));
+        Page<String, String> compressed = newPage(new Configuration().setNumber(2).setCompression(Configuration.Compression.DEFLATE));
+        for(int i = 0; i < 1000; i++){
+            raw.save("key" + i, text.toString() + i);
+            compressed.save("key" + i, text.toString() + i);
+            compressed.save("small" + i, "v" + i);
+        }
+        assertTrue(compressed.size() * 2 < raw.size());
+        for(int i = 0; i < 1000; i++){
+            assertEquals(text.toString() + i, compressed.load("key" + i));
+            assertEquals("v" + i, compressed.load("small" + i));
+        }
+        raw.close();
+        compressed.close();
+
+        //Compression only applies to new values, existing ones are read whatever the setting
+        compressed = newPage(new Configuration().setNumber(2));
+        assertEquals(2000, compressed.keyCount());
+        for(int i = 0; i < 1000; i++){
+            assertEquals(text.toString() + i, compressed.load("key" + i));
+        }
+        compressed.close();
+    }
+
+    public void testDictionary() throws Exception{
+        ConversionUtils utils = new ConversionUtils();
+        List<byte[]> samples = new ArrayList<byte[]>();
+        for(int i = 0; i < 100; i++){
+            samples.add(utils.serialize(record(i)));
+        }
+        byte[] dictionary = Compressor.trainDictionary(samples, 4096);
+        assertTrue(dictionary.length > 0 && dictionary.length <= 4096);
+
+        Configuration plain = new Configuration().setNumber(1).setCompression(Configuration.Compression.DEFLATE).setCompressionThreshold(0);
+        Page<String, String> withoutDictionary = newPage(plain);
+        Page<String, String> withDictionary = newPage(new Configuration(plain).setNumber(2).setCompressionDictionary(dictionary));
+        for(int i = 1000; i < 2000; i++){
+            withoutDictionary.save("key" + i, record(i));
+            withDictionary.save("key" + i, record(i));
+        }
+        assertTrue(withDictionary.size() < withoutDictionary.size());
+        for(int i = 1000; i < 2000; i++){
+            assertEquals(record(i), withDictionary.load("key" + i));
+        }
+        withoutDictionary.close();
+        withDictionary.close();
+
+        Page<String, String> missingDictionary = newPage(new Configuration().setNumber(2));
+        try {
+            missingDictionary.load("key1000");
+            fail("Values compressed with a dictionary cannot be read without it");
+        } catch (RuntimeException e) {
+            //expected
+        }
+        missingDictionary.close();
+    }
+
+    private String record(int i) {
+        return "{\"id\": " + i + ", \"name\": \"user" + i + "\", \"email\": \"user" + i + "@example.com\", \"status\": \"active\", \"roles\": [\"reader\", \"writer\"]}";
+    }
+
+    private Page<String, String> newPage(Configuration cfg) {
+        return new Page<String, String>(cfg.setDataDir(new File(TMP_DIR)));
+    }
+
+    private void clean(File dir) {
+        dir.mkdirs();
+        for (File file : dir.listFiles()) {
+            if (file.isDirectory()) {
+                clean(file);
+            }
+            file.delete();
+        }
+    }
+}
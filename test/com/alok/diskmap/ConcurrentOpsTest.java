@@ -23,10 +23,13 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ConcurrentOpsTest extends TestCase {
     private static final int THREAD_COUNT = 50;
@@ -53,6 +56,45 @@ public class ConcurrentOpsTest extends TestCase {
         executorService.invokeAll(tasks);
     }
 
+    public void testReadsDuringWrites() throws Exception{
+        File dir = new File(TEST_DIR, "overwrite");
+        dir.mkdirs();
+        final DiskBackedMap<String, String> map = new DiskBackedMap<String, String>(new Configuration().setDataDir(dir).setPageCount(2));
+        map.clear();
+        final int keys = 1000;
+        for(int i = 0; i < keys; i++){
+            map.put("Key" + i, "Value" + i);
+        }
+        final AtomicInteger misses = new AtomicInteger();
+        final long end = System.currentTimeMillis() + 2000;
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+        for(int t = 0; t < 8; t++){
+            final boolean writer = t % 2 == 0;
+            final Random random = new Random(t);
+            tasks.add(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    while(System.currentTimeMillis() < end){
+                        int i = random.nextInt(keys);
+                        if(writer){
+                            map.put("Key" + i, "Value" + i);
+                        }else if(!("Value" + i).equals(map.get("Key" + i))){
+                            misses.incrementAndGet();
+                        }
+                    }
+                    return true;
+                }
+            });
+        }
+        for (Future<Boolean> result : executorService.invokeAll(tasks)) {
+            assertTrue(result.get());
+        }
+        executorService.shutdown();
+        assertEquals(0, misses.get());
+        assertEquals(keys, map.size());
+        map.close();
+    }
+
     public class ReaderWriter implements Callable<Boolean>{
         private Map<String, String> map;
         private long count;
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2009 Alok Singh
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.alok.diskmap;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+
+public class IndexCheckpointTest extends TestCase {
+    private static final String TMP_DIR = "/tmp/tests/checkpoint";
+    private static final String COPY_DIR = "/tmp/tests/checkpoint-copy";
+
+    public void setUp(){
+        clean(new File(TMP_DIR));
+        clean(new File(COPY_DIR));
+    }
+
+    public void testReloadFromCheckpoint(){
+        Page<String, String> page = newPage(TMP_DIR);
+        for(int i = 0; i < 1000; i++){
+            page.save("key" + i, "value" + i);
+        }
+        page.close();
+        assertTrue(new File(TMP_DIR, "1.idx").exists());
+        page = newPage(TMP_DIR);
+        assertEquals(1000, page.keyCount());
+        for(int i = 0; i < 1000; i++){
+            assertEquals("value" + i, page.load("key" + i));
+        }
+        page.close();
+    }
+
+    public void testReplayAfterCheckpoint() throws IOException {
+        Page<String, String> page = newPage(TMP_DIR);
+        for(int i = 0; i < 1000; i++){
+            page.save("key" + i, "value" + i);
+        }
+        page.close();
+        page = newPage(TMP_DIR);
+        for(int i = 0; i < 1000; i++){
+            if(i % 3 == 0){
+                page.remove("key" + i);
+            }else if(i % 3 == 1){
+                page.save("key" + i, "newValue" + i);
+            }
+        }
+        for(int i = 1000; i < 1500; i++){
+            page.save("key" + i, "value" + i);
+        }
+        //Simulate a crash: copy the files without closing the page
+        copy(new File(TMP_DIR, "1.dat"), new File(COPY_DIR, "1.dat"));
+        copy(new File(TMP_DIR, "1.idx"), new File(COPY_DIR, "1.idx"));
+        page.close();
+
+        Page<String, String> recovered = newPage(COPY_DIR);
+        for(int i = 0; i < 1500; i++){
+            if(i < 1000 && i % 3 == 0){
+                assertNull(recovered.load("key" + i));
+            }else if(i < 1000 && i % 3 == 1){
+                assertEquals("newValue" + i, recovered.load("key" + i));
+            }else{
+                assertEquals("value" + i, recovered.load("key" + i));
+            }
+        }
+        recovered.close();
+    }
+
+    public void testReplayWithoutCheckpoint(){
+        Page<String, String> page = newPage(TMP_DIR);
+        for(int round = 0; round < 3; round++){
+            for(int i = 0; i < 1000; i++){
+                page.save("key" + i, "value" + round + "-" + i);
+            }
+            for(int i = round; i < 1000; i += 3){
+                page.remove("key" + i);
+            }
+        }
+        page.close();
+        assertTrue(new File(TMP_DIR, "1.idx").delete());
+
+        page = newPage(TMP_DIR);
+        assertEquals(1000 - 333, page.keyCount());
+        for(int i = 0; i < 1000; i++){
+            assertEquals(i % 3 == 2 ? null : "value2-" + i, page.load("key" + i));
+        }
+        page.close();
+    }
+
+    public void testCorruptCheckpoint() throws IOException {
+        Page<String, String> page = newPage(TMP_DIR);
+        for(int i = 0; i < 1000; i++){
+            page.save("key" + i, "value" + i);
+        }
+        page.close();
+        File checkpoint = new File(TMP_DIR, "1.idx");
+        //Zeroes in the middle of the entries, as left by a crash before the pages were written
+        RandomAccessFile file = new RandomAccessFile(checkpoint, "rw");
+        file.seek(file.length() / 2);
+        file.write(new byte[64]);
+        file.close();
+        assertReplayed();
+
+        page = newPage(TMP_DIR);
+        page.close();
+        file = new RandomAccessFile(checkpoint, "rw");
+        file.setLength(file.length() - 100);
+        file.close();
+        assertReplayed();
+    }
+
+    private void assertReplayed() {
+        Page<String, String> page = newPage(TMP_DIR);
+        assertEquals(1000, page.keyCount());
+        for(int i = 0; i < 1000; i++){
+            assertEquals("value" + i, page.load("key" + i));
+        }
+        page.close();
+    }
+
+    private Page<String, String> newPage(String dir) {
+        return new Page<String, String>(new Configuration().setDataDir(new File(dir)).setNumber(1).setCheckpointInterval(0));
+    }
+
+    private void clean(File dir) {
+        dir.mkdirs();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+    }
+
+    private void copy(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        OutputStream out = new FileOutputStream(to);
+        byte[] buffer = new byte[8192];
+        int read;
+        while((read = in.read(buffer)) > 0){
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        out.close();
+    }
+}
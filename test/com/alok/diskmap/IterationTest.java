@@ -0,0 +1,250 @@
+/*
+ * Copyright 2009 Alok Singh
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.alok.diskmap;
+
+import junit.framework.TestCase;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+
+public class IterationTest extends TestCase {
+    private static final String TMP_DIR = "/tmp/tests/iteration";
+
+    public void setUp(){
+        clean(new File(TMP_DIR));
+    }
+
+    public void testViews() throws Exception{
+        DiskBackedMap<Serializable, Serializable> map = new DiskBackedMap<Serializable, Serializable>(new Configuration()
+                .setDataDir(new File(TMP_DIR)).setPageCount(3).setCompactionRatio(0));
+        Map<Serializable, Serializable> expected = new HashMap<Serializable, Serializable>();
+        for(int i = 0; i < 3000; i++){
+            map.put("Key" + i, "Value" + i);
+        }
+        for(int i = 0; i < 3000; i++){
+            if(i % 3 == 0){
+                map.remove("Key" + i);
+            }else{
+                map.put("Key" + i, "NewValue" + i);
+                expected.put("Key" + i, "NewValue" + i);
+            }
+        }
+        Map<Serializable, Serializable> actual = new HashMap<Serializable, Serializable>();
+        for (Map.Entry<Serializable, Serializable> entry : map.entrySet()) {
+            assertNull(actual.put(entry.getKey(), entry.getValue()));
+        }
+        assertEquals(expected, actual);
+        assertEquals(expected.keySet(), new HashSet<Serializable>(map.keySet()));
+        assertEquals(new HashSet<Serializable>(expected.values()), new HashSet<Serializable>(map.values()));
+        assertEquals(2000, map.entrySet().size());
+        assertTrue(map.containsValue("NewValue1"));
+        assertFalse(map.containsValue("Value1"));
+        assertTrue(map.keySet().contains("Key1"));
+
+        for (Iterator<Serializable> keys = map.keySet().iterator(); keys.hasNext();) {
+            if(keys.next().hashCode() % 2 == 0){
+                keys.remove();
+            }
+        }
+        for (Serializable key : expected.keySet()) {
+            assertEquals(key.hashCode() % 2 == 0 ? null : expected.get(key), map.get(key));
+        }
+        map.close();
+    }
+
+    public void testCursorPausesCompaction() throws Exception{
+        Page<String, String> page = new Page<String, String>(new Configuration().setDataDir(new File(TMP_DIR))
+                .setNumber(1).setCompactionMinSize(0));
+        for(int i = 0; i < 1000; i++){
+            page.save("key" + i, "value" + i);
+            page.save("key" + i, "newValue" + i);
+        }
+        long size = page.size();
+        Page<String, String>.Cursor cursor = page.iterator();
+        assertTrue(cursor.hasNext());
+        //Appended after the cursor was opened, left out of it
+        page.save("late", "value");
+        long written = page.size();
+        page.compact();
+        assertEquals(written, page.size());
+        assertFalse(new File(TMP_DIR, "1.cmp").exists());
+        Set<String> keys = new HashSet<String>();
+        while (cursor.hasNext()) {
+            Map.Entry<String, String> entry = cursor.next();
+            assertEquals("newValue" + entry.getKey().substring(3), entry.getValue());
+            assertTrue(keys.add(entry.getKey()));
+        }
+        assertEquals(1000, keys.size());
+
+        page.compact();
+        assertTrue(page.size() < size);
+        assertEquals("value", page.load("late"));
+        page.close();
+    }
+
+    public void testSpliterator() throws Exception{
+        Page<String, String> page = new Page<String, String>(new Configuration().setDataDir(new File(TMP_DIR)).setNumber(2));
+        char[] padding = new char[1000];
+        Arrays.fill(padding, 'x');
+        int count = 12000;
+        for(int i = 0; i < count; i++){
+            page.save("key" + i, i + new String(padding));
+        }
+        //Every split is split again until none of them can be
+        List<Spliterator<Map.Entry<String, String>>> splits = new ArrayList<Spliterator<Map.Entry<String, String>>>();
+        splits.add(page.spliterator());
+        for(int i = 0; i < splits.size(); i++){
+            Spliterator<Map.Entry<String, String>> split;
+            while((split = splits.get(i).trySplit()) != null){
+                splits.add(split);
+            }
+        }
+        assertTrue(splits.size() > 1);
+        final Set<String> keys = new HashSet<String>();
+        long estimate = 0;
+        for (Spliterator<Map.Entry<String, String>> split : splits) {
+            estimate += split.estimateSize();
+            split.forEachRemaining(new Consumer<Map.Entry<String, String>>() {
+                public void accept(Map.Entry<String, String> entry) {
+                    assertTrue(entry.getValue().startsWith(entry.getKey().substring(3)));
+                    assertTrue(keys.add(entry.getKey()));
+                }
+            });
+        }
+        assertEquals(count, keys.size());
+        assertEquals(count, estimate, count / 100);
+        page.close();
+
+        DiskBackedMap<Serializable, Serializable> map = new DiskBackedMap<Serializable, Serializable>(new Configuration()
+                .setDataDir(new File(TMP_DIR, "map")).setPageCount(4));
+        for(int i = 0; i < 1000; i++){
+            map.put("Key" + i, i);
+        }
+        long sum = 0;
+        for (Serializable value : map.values()) {
+            sum += (Integer) value;
+        }
+        assertEquals(sum, map.values().parallelStream().mapToLong(new ToLongFunction<Serializable>() {
+            public long applyAsLong(Serializable value) {
+                return (Integer) value;
+            }
+        }).sum());
+        assertEquals(1000, map.entrySet().parallelStream().count());
+        assertEquals(1000, map.keySet().parallelStream().distinct().count());
+        map.close();
+    }
+
+    public void testAbandonedIterator() throws Exception{
+        DiskBackedMap<Serializable, Serializable> map = new DiskBackedMap<Serializable, Serializable>(new Configuration()
+                .setDataDir(new File(TMP_DIR)).setPageCount(2).setCompactionRatio(0));
+        for(int i = 0; i < 100; i++){
+            map.put("Key" + i, "Value" + i);
+            map.put("Key" + i, "NewValue" + i);
+        }
+        long size = map.sizeOnDisk();
+        Iterator<Map.Entry<Serializable, Serializable>> entries = map.entrySet().iterator();
+        entries.next();
+        ((Closeable) entries).close();
+        assertFalse(entries.hasNext());
+        map.gc();
+        assertTrue(map.sizeOnDisk() < size);
+        map.close();
+    }
+
+    public void testStoppedStream() throws Exception{
+        DiskBackedMap<Serializable, Serializable> map = new DiskBackedMap<Serializable, Serializable>(new Configuration()
+                .setDataDir(new File(TMP_DIR)).setPageCount(1).setCompactionRatio(0));
+        for(int i = 0; i < 100; i++){
+            map.put("Key" + i, "Value" + i);
+            map.put("Key" + i, "NewValue" + i);
+        }
+        long size = map.sizeOnDisk();
+        Stream<Serializable> keys = map.keySet().stream();
+        assertTrue(keys.findFirst().isPresent());
+        keys.close();
+        Stream<Serializable> values = map.values().parallelStream();
+        assertTrue(values.anyMatch(new Predicate<Serializable>() {
+            public boolean test(Serializable value) {
+                return value.equals("NewValue1");
+            }
+        }));
+        values.close();
+        map.gc();
+        assertTrue(map.sizeOnDisk() < size);
+        map.close();
+    }
+
+    public void testContainsValue() throws Exception{
+        DiskBackedMap<Serializable, Serializable> map = new DiskBackedMap<Serializable, Serializable>(new Configuration()
+                .setDataDir(new File(TMP_DIR)).setPageCount(1).setCompactionRatio(0));
+        for(int i = 0; i < 100; i++){
+            map.put("Key" + i, "Value" + i);
+            map.put("Key" + i, "NewValue" + i);
+        }
+        long size = map.sizeOnDisk();
+        assertTrue(map.containsValue("NewValue0"));
+        assertTrue(map.values().contains("NewValue1"));
+        assertFalse(map.containsValue("Value0"));
+        map.gc();
+        assertTrue(map.sizeOnDisk() < size);
+        map.close();
+    }
+
+    public void testDroppedCursor() throws Exception{
+        Page<String, String> page = new Page<String, String>(new Configuration().setDataDir(new File(TMP_DIR))
+                .setNumber(1).setCompactionMinSize(0));
+        for(int i = 0; i < 1000; i++){
+            page.save("key" + i, "value" + i);
+            page.save("key" + i, "newValue" + i);
+        }
+        long size = page.size();
+        assertTrue(page.iterator().hasNext());
+        //Released by the garbage collector
+        long deadline = System.currentTimeMillis() + 10000;
+        while(page.size() == size && System.currentTimeMillis() < deadline){
+            System.gc();
+            Thread.sleep(20);
+            page.compact();
+        }
+        assertTrue(page.size() < size);
+        page.close();
+    }
+
+    private void clean(File dir) {
+        dir.mkdirs();
+        for (File file : dir.listFiles()) {
+            if (file.isDirectory()) {
+                clean(file);
+            }
+            file.delete();
+        }
+    }
+}
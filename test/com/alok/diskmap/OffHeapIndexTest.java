@@ -0,0 +1,153 @@
+/*
+ * Copyright 2009 Alok Singh
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.alok.diskmap;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+public class OffHeapIndexTest extends TestCase {
+
+    public void testInsertLookupDelete(){
+        OffHeapIndex index = new OffHeapIndex(16);
+        Map<Integer, Long> expected = new HashMap<Integer, Long>();
+        Random random = new Random(7);
+        for(int i = 0; i < 100000; i++){
+            int hash = random.nextInt();
+            if(expected.containsKey(hash)){
+                continue;
+            }
+            expected.put(hash, (long) i);
+            index.insert(hash, i);
+        }
+        assertEquals(expected.size(), index.count());
+        for (Map.Entry<Integer, Long> entry : expected.entrySet()) {
+            long[] locations = index.lookup(entry.getKey());
+            assertEquals(1, locations.length);
+            assertEquals(entry.getValue().longValue(), locations[0]);
+        }
+        int removed = 0;
+        for (Iterator<Map.Entry<Integer, Long>> it = expected.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Integer, Long> entry = it.next();
+            if(entry.getValue() % 3 == 0){
+                index.delete(entry.getKey(), entry.getValue());
+                it.remove();
+                removed++;
+                assertNull(index.lookup(entry.getKey()));
+            }
+        }
+        assertEquals(expected.size(), index.count());
+        for (Map.Entry<Integer, Long> entry : expected.entrySet()) {
+            assertEquals(entry.getValue().longValue(), index.lookup(entry.getKey())[0]);
+        }
+        assertTrue(removed > 0);
+    }
+
+    public void testCopy(){
+        OffHeapIndex index = new OffHeapIndex(16);
+        //Spread over several segments
+        for(int i = 0; i < 3000000; i++){
+            index.insert(i, i * 2L);
+        }
+        OffHeapIndex copy = index.copy();
+        index.delete(7, 14);
+        index.insert(7, 15);
+        assertEquals(3000000, copy.count());
+        assertEquals(14, copy.lookup(7)[0]);
+        assertEquals(15, index.lookup(7)[0]);
+        for(int i = 0; i < 3000000; i += 1000){
+            assertEquals(i * 2L, copy.lookup(i)[0]);
+        }
+        copy.insert(-1, 1);
+        assertEquals(3000001, copy.count());
+        assertNull(index.lookup(-1));
+    }
+
+    public void testReserve(){
+        OffHeapIndex index = new OffHeapIndex(16);
+        for(int i = 0; i < 10; i++){
+            index.insert(i, i);
+        }
+        index.reserve(100000);
+        long capacity = index.capacityInBytes();
+        for(int i = 10; i < 100010; i++){
+            index.insert(i, i);
+        }
+        assertEquals(capacity, index.capacityInBytes());
+        assertEquals(100010, index.count());
+        for(int i = 0; i < 100010; i++){
+            assertEquals(i, index.lookup(i)[0]);
+        }
+    }
+
+    public void testCollisions(){
+        OffHeapIndex index = new OffHeapIndex(16);
+        for(long i = 0; i < 100; i++){
+            index.insert(42, i);
+            index.insert(43, i);
+        }
+        index.insert(42, 0);
+        assertEquals(200, index.count());
+        assertEquals(100, index.lookup(42).length);
+        for(long i = 0; i < 100; i += 2){
+            index.delete(42, i);
+        }
+        long[] locations = index.lookup(42);
+        assertEquals(50, locations.length);
+        Arrays.sort(locations);
+        for(int i = 0; i < locations.length; i++){
+            assertEquals(i * 2 + 1, locations[i]);
+        }
+        assertEquals(100, index.lookup(43).length);
+    }
+
+    public void testTraverse(){
+        OffHeapIndex index = new OffHeapIndex();
+        final Set<Long> seen = new HashSet<Long>();
+        for(long i = 0; i < 5000; i++){
+            index.insert((int) (i % 1000), i);
+        }
+        index.traverse(new OffHeapIndex.Visitor() {
+            public void visit(int hash, long location) {
+                assertEquals(location % 1000, hash);
+                seen.add(location);
+            }
+        });
+        assertEquals(5000, seen.size());
+    }
+
+    public void testIndexEntry(){
+        long entry = IndexEntry.pack(IndexEntry.MAX_OFFSET, 1234, IndexEntry.fingerprint("key".getBytes()));
+        assertEquals(IndexEntry.MAX_OFFSET, IndexEntry.offset(entry));
+        assertEquals(1234, IndexEntry.length(entry));
+        assertEquals(IndexEntry.fingerprint("key".getBytes()), IndexEntry.fingerprint(entry));
+        //Clear of the file bit of Page
+        assertEquals(0, entry & (3L << 62));
+        assertEquals(0, IndexEntry.length(IndexEntry.pack(0, IndexEntry.MAX_LENGTH + 1, 0)));
+        Set<Integer> fingerprints = new HashSet<Integer>();
+        for(int i = 0; i < 10000; i++){
+            fingerprints.add(IndexEntry.fingerprint(("key" + i).getBytes()));
+        }
+        assertEquals(256, fingerprints.size());
+        try {
+            IndexEntry.pack(IndexEntry.MAX_OFFSET + 1, 0, 0);
+            fail();
+        } catch (IllegalStateException e) {
+            //expected
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2009 Alok Singh
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.alok.diskmap;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+public class PrimitiveKeyMapTest extends TestCase {
+    private static final String TMP_DIR = "/tmp/tests/primitive";
+
+    public void setUp(){
+        clean(new File(TMP_DIR));
+    }
+
+    public void testLongKeys() throws Exception{
+        File dir = new File(TMP_DIR, "long");
+        LongDiskBackedMap<String> map = new LongDiskBackedMap<String>(new Configuration().setDataDir(dir).setPageCount(3));
+        int count = 2000;
+        for(long i = -count; i < count; i++){
+            map.put(i * 1000003L, "Value" + i);
+        }
+        //Same hash code as the keys above, told apart by their bytes
+        for(long i = 1; i < 100; i++){
+            long colliding = (i << 32) | i;
+            assertEquals(Long.valueOf(0).hashCode(), Long.valueOf(colliding).hashCode());
+            map.put(colliding, "Colliding" + i);
+        }
+        assertEquals("Value0", map.get(0L));
+        for(long i = -count; i < count; i += 2){
+            map.remove(i * 1000003L);
+        }
+        map.close();
+
+        map = new LongDiskBackedMap<String>(dir.getPath());
+        assertEquals(count + 99, map.size());
+        for(long i = -count; i < count; i++){
+            assertEquals(i % 2 == 0 ? null : "Value" + i, map.get(i * 1000003L));
+        }
+        for(long i = 1; i < 100; i++){
+            assertEquals("Colliding" + i, map.get((i << 32) | i));
+        }
+        assertFalse(map.containsKey(0L));
+        assertTrue(map.containsKey(1000003L));
+        Set<Long> keys = new HashSet<Long>(map.keySet());
+        assertEquals(count + 99, keys.size());
+        assertTrue(keys.contains(-1000003L));
+        assertEquals("Value-1", map.getAsync(-1000003L).get());
+        map.close();
+    }
+
+    public void testIntKeys() throws Exception{
+        File dir = new File(TMP_DIR, "int");
+        IntDiskBackedMap<String> map = new IntDiskBackedMap<String>(new Configuration().setDataDir(dir).setPageCount(3));
+        int count = 2000;
+        for(int i = -count; i < count; i++){
+            map.put(i, "Value" + i);
+        }
+        map.put(-5, "NewValue-5");
+        assertEquals("Value7", map.remove(7));
+        map.close();
+
+        map = new IntDiskBackedMap<String>(dir.getPath());
+        assertEquals(2 * count - 1, map.size());
+        assertEquals("NewValue-5", map.get(-5));
+        assertNull(map.get(7));
+        assertEquals("Value" + Integer.valueOf(count - 1), map.get(count - 1));
+        map.close();
+    }
+
+    public void testPrimitiveLookupsWithCache() throws Exception{
+        File dir = new File(TMP_DIR, "cached");
+        LongDiskBackedMap<String> map = new LongDiskBackedMap<String>(new Configuration().setDataDir(dir).setPageCount(3)
+                .setCacheSize(1024 * 1024));
+        for(long i = 0; i < 1000; i++){
+            map.put(i << 33, "Value" + i);
+        }
+        for(int pass = 0; pass < 2; pass++){
+            for(long i = 0; i < 1000; i++){
+                assertEquals("Value" + i, map.get(i << 33));
+                assertTrue(map.containsKey(i << 33));
+                assertFalse(map.containsKey((i << 33) + 1));
+            }
+        }
+        assertTrue(map.cacheStats().getHits() >= 1000);
+        map.remove(5L << 33);
+        assertNull(map.get(5L << 33));
+        assertFalse(map.containsKey(5L << 33));
+        map.put(5L << 33, "NewValue5");
+        assertEquals("NewValue5", map.get(5L << 33));
+        map.close();
+    }
+
+    public void testKeyEncodingChecked() throws Exception{
+        File dir = new File(TMP_DIR, "checked");
+        IntDiskBackedMap<String> map = new IntDiskBackedMap<String>(new Configuration().setDataDir(dir).setPageCount(3));
+        map.put(5, "Value5");
+        assertNull(map.get(5L));
+        assertFalse(map.containsKey("5"));
+        assertNull(map.remove(5L));
+        assertEquals("Value5", map.get(5));
+        map.close();
+        try {
+            new LongDiskBackedMap<String>(dir.getPath());
+            fail();
+        } catch (IllegalStateException e) {
+            //Expected
+        }
+        try {
+            new DiskBackedMap<Integer, String>(dir.getPath());
+            fail();
+        } catch (IllegalStateException e) {
+            //Expected
+        }
+        map = new IntDiskBackedMap<String>(dir.getPath());
+        assertEquals("Value5", map.get(5));
+        map.close();
+
+        File objects = new File(TMP_DIR, "objects");
+        DiskBackedMap<Integer, String> written = new DiskBackedMap<Integer, String>(objects.getPath());
+        written.put(5, "Value5");
+        written.close();
+        try {
+            new IntDiskBackedMap<String>(objects.getPath());
+            fail();
+        } catch (IllegalStateException e) {
+            //Expected
+        }
+    }
+
+    private void clean(File dir) {
+        dir.mkdirs();
+        for (File file : dir.listFiles()) {
+            if (file.isDirectory()) {
+                clean(file);
+            }
+            file.delete();
+        }
+    }
+}
@@ -19,6 +19,8 @@ package com.alok.diskmap;
 import junit.framework.TestCase;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public class RecordTest extends TestCase{
     public void testReadWrite() throws IOException{
@@ -34,4 +36,60 @@ public class RecordTest extends TestCase{
         r2.read(in);
         assertEquals(r1, r2);
     }
+
+    public void testCompactFormat() throws IOException{
+        byte[] key = new byte[300];
+        byte[] value = "bar".getBytes();
+        key[299] = 7;
+        Record r1 = new Record(key, value, Record.TOMBSTONE, 42, 0);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        r1.write(new DataOutputStream(buffer), Record.V2);
+        byte[] bytes = buffer.toByteArray();
+        assertEquals(bytes.length, r1.length());
+        assertEquals(bytes.length, Record.length(ByteBuffer.wrap(bytes), 0, Record.V2));
+        assertEquals(-1, Record.length(ByteBuffer.wrap(bytes, 0, 6), 0, Record.V2));
+
+        Record r2 = new Record();
+        r2.read(ByteBuffer.wrap(bytes), Record.V2);
+        r2.setLocation(0);
+        assertEquals(r1, r2);
+        assertTrue(r2.hasValidChecksum());
+        bytes[bytes.length - 5] ^= 1;
+        r2.read(ByteBuffer.wrap(bytes), Record.V2);
+        assertFalse(r2.hasValidChecksum());
+
+        ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+        r1.write(new DataOutputStream(legacy), Record.V0);
+        assertTrue(bytes.length < legacy.size());
+    }
+
+    public void testPositionalRead() throws IOException{
+        File file = File.createTempFile("record", ".dat");
+        file.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        Record[] records = {
+                new Record("a".getBytes(), "b".getBytes(), Record.ACTIVE, 1, 0),
+                new Record("big".getBytes(), new byte[100000], Record.ACTIVE, 2, 0),
+                new Record("c".getBytes(), new byte[0], Record.TOMBSTONE, 3, 0)};
+        for (int format : new int[]{Record.V0, Record.V2}) {
+            raf.setLength(0);
+            long[] locations = new long[records.length];
+            for (int i = 0; i < records.length; i++) {
+                locations[i] = raf.getFilePointer();
+                records[i].setLocation(locations[i]);
+                records[i].write(raf, format);
+            }
+            FileChannel channel = raf.getChannel();
+            for (int i = records.length - 1; i >= 0; i--) {
+                Record r = new Record();
+                r.read(channel, locations[i], format);
+                assertEquals(records[i], r);
+                assertEquals(records[i].length(), r.length());
+                Record sized = new Record();
+                sized.read(channel, locations[i], records[i].length(), format);
+                assertEquals(records[i], sized);
+            }
+        }
+        raf.close();
+    }
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2009 Alok Singh
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.alok.diskmap;
+
+import junit.framework.TestCase;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class RecoveryTest extends TestCase {
+    private static final String TMP_DIR = "/tmp/tests/recovery";
+
+    public void setUp(){
+        clean(new File(TMP_DIR));
+    }
+
+    public void testTornTail() throws IOException {
+        //Never closed, as after a kill -9
+        Page<String, String> crashed = newPage();
+        for(int i = 0; i < 200; i++){
+            crashed.save("key" + i, "value" + i);
+        }
+        File data = new File(TMP_DIR, "1.dat");
+        long length = data.length();
+        append(data, new byte[]{0, 0, 0, 1, 0, 1, 2});
+
+        Page<String, String> page = newPage();
+        assertEquals(200, page.keyCount());
+        assertEquals(length, data.length());
+        page.save("key200", "value200");
+        page.close();
+
+        page = newPage();
+        assertEquals(201, page.keyCount());
+        for(int i = 0; i <= 200; i++){
+            assertEquals("value" + i, page.load("key" + i));
+        }
+        page.close();
+    }
+
+    public void testChecksumMismatch() throws IOException {
+        Page<String, String> crashed = newPage();
+        for(int i = 0; i < 100; i++){
+            crashed.save("key" + i, "value" + i);
+        }
+        File data = new File(TMP_DIR, "1.dat");
+        long length = data.length();
+        crashed.save("key100", "value100");
+        //Last byte of the value, before the checksum: the record is complete but not what was written
+        RandomAccessFile file = new RandomAccessFile(data, "rw");
+        file.seek(file.length() - 5);
+        byte b = file.readByte();
+        file.seek(file.length() - 5);
+        file.writeByte(b ^ 0xFF);
+        file.close();
+
+        Page<String, String> page = newPage();
+        assertEquals(100, page.keyCount());
+        assertNull(page.load("key100"));
+        assertEquals("value99", page.load("key99"));
+        assertEquals(length, data.length());
+        page.close();
+    }
+
+    public void testReplayLargeRecords() {
+        Page<String, String> page = newPage();
+        StringBuilder large = new StringBuilder();
+        for(int i = 0; i < 100000; i++){
+            large.append(i % 10);
+        }
+        for(int i = 0; i < 50; i++){
+            page.save("key" + i, i % 10 == 0 ? large.toString() + i : "value" + i);
+        }
+        page.close();
+        assertTrue(new File(TMP_DIR, "1.idx").delete());
+
+        page = newPage();
+        assertEquals(50, page.keyCount());
+        for(int i = 0; i < 50; i++){
+            assertEquals(i % 10 == 0 ? large.toString() + i : "value" + i, page.load("key" + i));
+        }
+        page.close();
+    }
+
+    public void testFileWithoutHeader() throws Exception {
+        //Layout of the files written before records had checksums
+        File data = new File(TMP_DIR, "1.dat");
+        ConversionUtils utils = new ConversionUtils();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(data));
+        long location = 0;
+        for(int i = 0; i < 100; i++){
+            String key = "key" + i;
+            Record r = new Record(utils.serialize(key), utils.serialize("value" + i), Record.ACTIVE, key.hashCode(), location);
+            r.write(out);
+            location += r.length();
+        }
+        out.close();
+
+        Page<String, String> page = newPage();
+        assertEquals(100, page.keyCount());
+        page.save("key0", "newValue0");
+        page.close();
+
+        page = newPage();
+        assertEquals(100, page.keyCount());
+        long legacySize = data.length();
+        //Compaction rewrites the file in the current layout
+        page.compact();
+        assertTrue(data.length() < legacySize);
+        assertEquals("newValue0", page.load("key0"));
+        for(int i = 1; i < 100; i++){
+            assertEquals("value" + i, page.load("key" + i));
+        }
+        page.close();
+
+        page = newPage();
+        assertEquals(100, page.keyCount());
+        assertEquals("newValue0", page.load("key0"));
+        page.close();
+    }
+
+    private void append(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(bytes);
+        out.close();
+    }
+
+    private Page<String, String> newPage() {
+        return new Page<String, String>(new Configuration().setDataDir(new File(TMP_DIR)).setNumber(1));
+    }
+
+    private void clean(File dir) {
+        dir.mkdirs();
+        for (File file : dir.listFiles()) {
+            if (file.isDirectory()) {
+                clean(file);
+            }
+            file.delete();
+        }
+    }
+}
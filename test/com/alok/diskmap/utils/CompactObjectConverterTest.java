@@ -0,0 +1,75 @@
+/*
+ * Copyright 2009 Alok Singh
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.alok.diskmap.utils;
+
+import junit.framework.TestCase;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.*;
+
+public class CompactObjectConverterTest extends TestCase {
+    private final CompactObjectConverter converter = new CompactObjectConverter();
+
+    public void testRoundTrip() throws Exception {
+        ArrayList<Serializable> list = new ArrayList<Serializable>(Arrays.<Serializable>asList("a", 1, null, 2L));
+        HashMap<String, Serializable> map = new HashMap<String, Serializable>();
+        map.put("list", list);
+        map.put("set", new LinkedHashSet<String>(Arrays.asList("x", "y")));
+        Serializable[] objects = {"", "Key1", "\u00e9\u4e2d\ud83d\ude00", Integer.MIN_VALUE, -1, 0, Integer.MAX_VALUE,
+                Long.MIN_VALUE, Long.MAX_VALUE, (short) -300, (byte) -5, 'c', true, false, 1.5f, Double.NaN, -0.0,
+                UUID.randomUUID(), list, new HashSet<Integer>(Arrays.asList(1, 2, 3)), map, new LinkedHashMap<String, String>()};
+        for (Serializable object : objects) {
+            assertEquals(object, converter.deserialize(converter.serialize(object)));
+        }
+        byte[] bytes = {1, 2, -3};
+        assertTrue(Arrays.equals(bytes, (byte[]) converter.deserialize(converter.serialize(bytes))));
+    }
+
+    public void testNaN() throws Exception {
+        //Equal keys must have equal bytes, whatever the payload of their NaN
+        Double nan = Double.longBitsToDouble(0x7ff8000000000123L);
+        assertEquals(Double.valueOf(Double.NaN), nan);
+        assertTrue(Arrays.equals(converter.serialize(Double.NaN), converter.serialize(nan)));
+        Float floatNaN = Float.intBitsToFloat(0x7fc00123);
+        assertEquals(Float.valueOf(Float.NaN), floatNaN);
+        assertTrue(Arrays.equals(converter.serialize(Float.NaN), converter.serialize(floatNaN)));
+        assertFalse(Arrays.equals(converter.serialize(0.0), converter.serialize(-0.0)));
+    }
+
+    public void testSize() throws Exception {
+        assertEquals(2, converter.serialize(5).length);
+        assertEquals(6, converter.serialize("Key1").length);
+        assertEquals(17, converter.serialize(UUID.randomUUID()).length);
+        assertTrue(converter.serialize(5).length * 10 < new DefaultObjectConverter().serialize(5).length);
+    }
+
+    public void testFallback() throws Exception {
+        DefaultObjectConverter java = new DefaultObjectConverter();
+        //Types without a compact encoding, also inside collections, and strings UTF-8 would alter
+        Serializable[] objects = {new BigDecimal("1.25"), new TreeMap<String, String>(),
+                new ArrayList<Serializable>(Arrays.<Serializable>asList("a", new Date(0))), "a\ud800b"};
+        for (Serializable object : objects) {
+            byte[] bytes = converter.serialize(object);
+            assertTrue(Arrays.equals(java.serialize(object), bytes));
+            assertEquals(object, converter.deserialize(bytes));
+        }
+        //Buffers written before the compact encoding
+        assertEquals("Key1", converter.deserialize(java.serialize("Key1")));
+        assertEquals(42L, (long) converter.<Long>deserialize(java.serialize(42L)));
+    }
+}